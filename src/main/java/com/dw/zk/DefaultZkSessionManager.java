@@ -16,23 +16,41 @@
 package com.dw.zk;
 
 import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 /**
  * A Default implementation of a {@link ZkSessionManager}.
  * <p/>
  * This implementation guarantees that all calls to {@code ConnectionListener}s will occur
- * on a separate, dedicated thread which is provided by a ThreadExecutorService. The default constructions
+ * on separate threads which are provided by a ThreadExecutorService. The default constructions
  * will create an ExecutorService for this, but the caller may specify a specific ExecutorService upon
  * construction.
+ * <p/>
+ * Each event is fanned out to all listeners in parallel, and each listener is isolated from the others:
+ * events reach a given listener one at a time and in order, exceptions it throws are logged and swallowed,
+ * and a call which runs past the listener time budget is interrupted. A slow or failing listener therefore
+ * cannot delay the delivery of (for example) session expiration to the others, provided the executor has
+ * more than one thread.
  *
  * @author Scott Fines
  * @version 1.0
@@ -42,23 +60,55 @@ public class DefaultZkSessionManager implements ZkSessionManager {
     private static final Logger logger = LoggerFactory.getLogger(DefaultZkSessionManager.class);
 
     private static final int DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS = 30000;
-    private static final int CONNECTED_CHECK_DELAY_MILLIS = 10;
+    private static final long DEFAULT_LISTENER_TIME_BUDGET_MILLIS = 10000;
+    private static final long DEFAULT_RECONNECT_BASE_DELAY_MILLIS = 500;
+    private static final long DEFAULT_RECONNECT_MAX_DELAY_MILLIS = 30000;
 
-    //this could potentially be a very write-heavy list, so a synchronized list will perform better
-    //than a more traditional CopyOnWriteArrayList would be
-    private final List<ConnectionListener> listeners = Collections.synchronizedList(new ArrayList<ConnectionListener>());
+    //registration is on the lock hot path, so it must be O(1) and only contend per listener; events are rare,
+    //so dispatch works off an immutable snapshot which is rebuilt only after the registrations have changed
+    private final ConcurrentHashMap<ConnectionListener, ListenerSlot> listeners = new ConcurrentHashMap<ConnectionListener, ListenerSlot>();
+    private final AtomicLong listenersVersion = new AtomicLong();
+    private volatile ListenerSnapshot listenerSnapshot = new ListenerSnapshot(0, new ListenerSlot[0]);
+    private volatile long listenerTimeBudgetMillis = DEFAULT_LISTENER_TIME_BUDGET_MILLIS;
 
     private final String connectionString;
     private final int timeout;
     private final ExecutorService executor;
     private final int zkSessionPollInterval;
     private final int maxConnectionWaitTime;
-    private final int connectedCheckDelay;
+
+    //guards (re)connects and shutdown of this manager; never held while handing out a CONNECTED session.
+    //j.u.c locks rather than monitors throughout, so that virtual threads waiting on them do not pin their carrier
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    //signalled when shutting down, to wake up the threads waiting out a reconnect delay
+    private final Condition reconnectDelay = connectionLock.newCondition();
+
+    //guards the coalescing of syncIfStale() calls
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private SyncRound inFlightSync;
+    private SyncRound pendingSync;
 
     private volatile ZooKeeper zk;
+    //the client handed out by the fast path: zk, once it has connected and has been prepared for use
+    private volatile ZooKeeper ready;
     private volatile boolean shutdown;
 
-    private ZkSessionPoller poller;
+    private volatile ZkSessionFile sessionFile;
+    private boolean resumeAttempted;
+    private volatile ServerProbe serverProbe;
+
+    private volatile ReconnectPolicy reconnectPolicy = new ExponentialBackoffReconnectPolicy(
+            DEFAULT_RECONNECT_BASE_DELAY_MILLIS, DEFAULT_RECONNECT_MAX_DELAY_MILLIS);
+    //consecutive failed connection attempts, the delay which preceded the last one and the earliest time of the
+    //next one; guarded by connectionLock
+    private int failedAttempts;
+    private long reconnectDelayMillis;
+    private long nextAttemptNanos;
+
+    //the watcher registered with the current zk, which signals parked threads on connection state changes
+    private SessionWatcher sessionWatcher;
+
+    private volatile ZkSessionPoller poller;
 
     /**
      * Creates a new instance of a DefaultZkSessionManager.
@@ -69,7 +119,7 @@ public class DefaultZkSessionManager implements ZkSessionManager {
      * @param timeout          the timeout to use before expiring the ZooKeeper session.
      */
     public DefaultZkSessionManager(String connectionString, int timeout) {
-        this(connectionString, timeout, Executors.newSingleThreadExecutor(), -1, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS, CONNECTED_CHECK_DELAY_MILLIS);
+        this(connectionString, timeout, newListenerExecutor(), -1, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS);
     }
 
     /**
@@ -84,7 +134,7 @@ public class DefaultZkSessionManager implements ZkSessionManager {
      *                              manual session checking is to be used
      */
     public DefaultZkSessionManager(String connectionString, int timeout, int zkSessionPollInterval) {
-        this(connectionString, timeout, Executors.newSingleThreadExecutor(), zkSessionPollInterval, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS, CONNECTED_CHECK_DELAY_MILLIS);
+        this(connectionString, timeout, newListenerExecutor(), zkSessionPollInterval, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS);
     }
 
     /**
@@ -99,7 +149,7 @@ public class DefaultZkSessionManager implements ZkSessionManager {
      * @param executor         the executor to use in constructing calling threads.
      */
     public DefaultZkSessionManager(String connectionString, int timeout, ExecutorService executor) {
-        this(connectionString, timeout, executor, -1, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS, CONNECTED_CHECK_DELAY_MILLIS);
+        this(connectionString, timeout, executor, -1, DEFAULT_MAX_CONNECTION_WAIT_TIME_MILLIS);
     }
 
     /**
@@ -114,75 +164,383 @@ public class DefaultZkSessionManager implements ZkSessionManager {
      * @param executor              the executor to use in constructing calling threads
      * @param zkSessionPollInterval the polling interval to use for manual session checking, or -1 if no
      *                              manual session checking is to be used
+     * @param maxConnectionWaitTime the maximum time (in milliseconds) to wait for a session to become CONNECTED
      */
-    public DefaultZkSessionManager(String connectionString, int timeout, ExecutorService executor, int zkSessionPollInterval, int maxConnectionWaitTime, int connectedCheckDelay) {
+    public DefaultZkSessionManager(String connectionString, int timeout, ExecutorService executor, int zkSessionPollInterval, int maxConnectionWaitTime) {
         this.connectionString = connectionString;
         this.timeout = timeout;
         this.executor = executor;
         this.zkSessionPollInterval = zkSessionPollInterval;
         this.maxConnectionWaitTime = maxConnectionWaitTime;
-        this.connectedCheckDelay = connectedCheckDelay;
     }
 
+    /**
+     * @deprecated connection waits are signalled by the session watcher rather than polled, so
+     * {@code connectedCheckDelay} is ignored. Use
+     * {@link #DefaultZkSessionManager(String, int, ExecutorService, int, int)} instead.
+     */
+    @Deprecated
+    public DefaultZkSessionManager(String connectionString, int timeout, ExecutorService executor, int zkSessionPollInterval, int maxConnectionWaitTime, int connectedCheckDelay) {
+        this(connectionString, timeout, executor, zkSessionPollInterval, maxConnectionWaitTime);
+    }
+
+
+    /**
+     * Sets the time a single {@link ConnectionListener} call may take before it is interrupted.
+     *
+     * @param budget the time budget of a listener call
+     * @param unit   the unit of {@code budget}
+     */
+    public void setListenerTimeBudget(long budget, TimeUnit unit) {
+        this.listenerTimeBudgetMillis = unit.toMillis(budget);
+    }
+
+    /**
+     * Sets the policy deciding how long to wait before another connection attempt, once attempts have failed.
+     * By default, an {@link ExponentialBackoffReconnectPolicy} from 500 ms up to 30 s is used.
+     *
+     * @param reconnectPolicy the policy to use
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        if (reconnectPolicy == null)
+            throw new NullPointerException("No reconnect policy specified!");
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Enables latency-aware server selection: before each connection attempt, the servers of the connection
+     * string are probed, and the client is only given the nearest of them, along with enough fallback servers
+     * for the session to outlast as many failed servers as the ensemble does (see {@link NearestServers}). As
+     * unreachable servers are left out, a failed attempt followed by a new probe moves on to the next tier.
+     *
+     * @param serverProbe the probe to measure the distance to each server with, or null to connect to all
+     *                    servers in random order
+     */
+    public void setServerProbe(ServerProbe serverProbe) {
+        this.serverProbe = serverProbe;
+    }
+
+    /**
+     * Enables fast restarts: the id and password of the session are saved to the given file, and the first
+     * session this manager opens reconnects to the saved session, if it has not expired yet. Ephemeral nodes
+     * then survive a restart of the process: lock nodes are adopted by the first lock taken on their directory,
+     * keeping their position in the queue, and those not adopted within one session timeout are deleted.
+     * <p/>
+     * {@link #shutdown()} closes the session and removes the file, so a process which wants to keep its session
+     * across a restart must exit without calling it. Must be set before the first call to {@link #getZooKeeper()}.
+     * <p/>
+     * Anyone who can read the file can reconnect to the session, and so hold or steal every lock it owns: the
+     * file is created readable and writable by its owner only (on file systems without POSIX permissions, as
+     * far as {@link java.io.File} allows), and should be kept in a directory other users cannot write to.
+     *
+     * @param path the file to save the session to, or null to disable
+     */
+    public void setSessionFile(String path) {
+        this.sessionFile = path == null ? null : new ZkSessionFile(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Round trips are measured by the session poller, so this is only available when a
+     * {@code zkSessionPollInterval} has been configured.
+     */
+    @Override
+    public long getRoundTripNanos() {
+        ZkSessionPoller currentPoller = poller;
+        return currentPoller == null ? -1 : currentPoller.getRoundTripNanos();
+    }
+
+    /**
+     * Creates an executor for {@link ConnectionListener} calls which runs every call on a virtual thread of its
+     * own, so that listeners blocking on I/O or on locks cost no platform thread. Falls back to the default
+     * pool of daemon platform threads on JVMs without virtual threads (before Java 21).
+     * <p/>
+     * The default constructors use such an executor when the system property {@code zk.virtualThreads} is
+     * {@code true}.
+     *
+     * @return an executor to pass to {@link #DefaultZkSessionManager(String, int, ExecutorService, int, int)}
+     */
+    public static ExecutorService newVirtualThreadListenerExecutor() {
+        ExecutorService executor = VirtualThreads.newExecutor("zk-connection-listener-");
+        return executor != null ? executor : newPlatformListenerExecutor();
+    }
+
+    private static ExecutorService newListenerExecutor() {
+        return VirtualThreads.isEnabled() ? newVirtualThreadListenerExecutor() : newPlatformListenerExecutor();
+    }
+
+    private static ExecutorService newPlatformListenerExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("zk-connection-listener-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
 
     @Override
     public ZooKeeper getZooKeeper() {
-        synchronized (DefaultZkSessionManager.class) {
-            if (shutdown)
-                throw new IllegalStateException("Cannot request a ZooKeeper after the session has been closed!");
-            if (zk == null || zk.getState() == ZooKeeper.States.CLOSED) {
-                if (logger.isDebugEnabled()) {
-                    if (zk == null) {
-                        logger.debug("Found NULL ZK state.");
-                    } else {
-                        logger.debug("Found CLOSED ZK state.");
+        if (shutdown)
+            throw new IllegalStateException("Cannot request a ZooKeeper after the session has been closed!");
+        //fast path: a CONNECTED session is handed out with a single volatile read--no locking and no sync
+        ZooKeeper current = ready;
+        if (current != null && current.getState() == ZooKeeper.States.CONNECTED) {
+            return current;
+        }
+        return getZooKeeperSlowly();
+    }
+
+    /*
+     * Slow path for getZooKeeper(), taken only when the session is missing, closed or still connecting.
+     * There is at most one connection attempt in flight: it is made by the first thread to find the session
+     * missing, once the reconnect delay (if any) has run out, and the others wait for its outcome. The wait for
+     * the CONNECTED state happens outside of the lock, so only the threads which actually need the session
+     * are parked.
+     */
+    private ZooKeeper getZooKeeperSlowly() {
+        while (true) {
+            ZooKeeper current;
+            SessionWatcher watcher;
+            boolean resumed = false;
+            connectionLock.lock();
+            try {
+                if (shutdown)
+                    throw new IllegalStateException("Cannot request a ZooKeeper after the session has been closed!");
+                if (zk == null || zk.getState() == ZooKeeper.States.CLOSED) {
+                    if (logger.isDebugEnabled()) {
+                        if (zk == null) {
+                            logger.debug("Found NULL ZK state.");
+                        } else {
+                            logger.debug("Found CLOSED ZK state.");
+                        }
+                    }
+                    awaitReconnectDelay();
+                    //while waiting, another thread may have made the attempt already
+                    if (zk == null || zk.getState() == ZooKeeper.States.CLOSED) {
+                        resumed = getNewZookeeperInstance();
                     }
                 }
+                current = zk;
+                watcher = sessionWatcher;
+            } finally {
+                connectionLock.unlock();
+            }
 
-                zk = getNewZookeeperInstance();
-            } else {
-                // Before calling zk.sync we must ensure ZK is fully connected.
-                // If it is in a CONNECTING state and not a CONNECTED state
-                // we must wait before sync otherwise problems will occur.
-                logger.debug("Preparing to sync a ZK Instance");
-                try {
-                    ensureConnectionEstablishedBeforeProceeding();
+            // Before handing out ZK we must ensure it is fully connected.
+            // If it is in a CONNECTING state and not a CONNECTED state
+            // we must wait, otherwise problems will occur.
+            if (awaitConnected(current, watcher)) {
+                return current;
+            }
 
-                    //make sure that your zookeeper instance is synced
-                    zk.sync("/", new AsyncCallback.VoidCallback() {
-                        @Override
-                        public void processResult(int rc, String path, Object ctx) {
-                            //                    latch.countDown();
-                            //do nothing, we're good
-                        }
-                    }, this);
-                } catch (KeeperException.SystemErrorException e) {
-                    zk = getNewZookeeperInstance();
+            connectionLock.lock();
+            try {
+                if (zk == current) {
+                    if (resumed) {
+                        logger.info("Unable to resume the saved ZooKeeper session, starting a new one");
+                        sessionFile.clear();
+                    }
+                    if (current.getState() != ZooKeeper.States.CLOSED) {
+                        //the ensemble could not be reached in time: give up on this client, and back off
+                        closeConnectionQuietly(current);
+                        connectionAttemptFailed();
+                    } else if (resumed && !shutdown) {
+                        //the saved session has expired, which says nothing about the ensemble: start over now
+                        continue;
+                    }
                 }
+            } finally {
+                connectionLock.unlock();
             }
-            return zk;
+            throw new RuntimeException("Unable to establish a ZK connection in the time allotted");
         }
     }
 
-    private ZooKeeper getNewZookeeperInstance() {
+    /*
+     * Waits, holding connectionLock, until the next connection attempt may be made--but no longer than the
+     * maximum connection wait time, failing if the delay has not run out by then.
+     */
+    private void awaitReconnectDelay() {
+        long remaining = nextAttemptNanos - System.nanoTime();
+        if (remaining <= 0)
+            return;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxConnectionWaitTime);
+        boolean interrupted = false;
         try {
-            // Safety check to close ony old Zookeeper instances before issuing a new one.
-            closeConnectionQuietly(zk);
+            while (remaining > 0 && !shutdown) {
+                long wait = Math.min(remaining, deadline - System.nanoTime());
+                if (wait <= 0)
+                    throw new RuntimeException("Unable to establish a ZK connection in the time allotted: the next attempt is due in "
+                            + TimeUnit.NANOSECONDS.toMillis(remaining) + " ms");
+                try {
+                    reconnectDelay.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                remaining = nextAttemptNanos - System.nanoTime();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (shutdown)
+            throw new IllegalStateException("Cannot request a ZooKeeper after the session has been closed!");
+    }
 
-            zk = new ZooKeeper(connectionString, timeout, new SessionWatcher(this));
-            // Before returning ZK we must ensure it is fully connected.
-            // If it is in a CONNECTING state and not a CONNECTED state
-            // we must wait until it is finally connected to prevent issues.
-            logger.debug("Preparing to check the state of a newly established ZK connection");
+    /*
+     * Records a failed connection attempt, and schedules the next one. Must hold connectionLock.
+     */
+    private void connectionAttemptFailed() {
+        failedAttempts++;
+        reconnectDelayMillis = Math.max(0, reconnectPolicy.getDelayMillis(failedAttempts, reconnectDelayMillis));
+        nextAttemptNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMillis);
+        logger.warn("ZooKeeper connection attempt " + failedAttempts + " failed, the next attempt is due in " + reconnectDelayMillis + " ms");
+    }
+
+    @Override
+    public void syncIfStale() throws KeeperException, InterruptedException {
+        SyncRound round;
+        boolean leader = false;
+        syncLock.lock();
+        try {
+            if (inFlightSync == null) {
+                inFlightSync = round = new SyncRound();
+                leader = true;
+            } else {
+                //the sync in flight may have been sent before our caller's view became stale, so it cannot be
+                //trusted--join the single follow-up sync which is sent as soon as the current one completes
+                if (pendingSync == null) {
+                    pendingSync = new SyncRound();
+                }
+                round = pendingSync;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+        if (leader) {
+            ZooKeeper zooKeeper;
             try {
-                ensureConnectionEstablishedBeforeProceeding();
-            } catch (KeeperException.SystemErrorException e) {
-                throw new RuntimeException("Unable to establish a ZK connection in the time allotted");
+                zooKeeper = getZooKeeper();
+            } catch (RuntimeException e) {
+                completeSync(round, KeeperException.Code.CONNECTIONLOSS.intValue());
+                throw e;
             }
+            sendSync(zooKeeper, round);
+        }
+        round.await();
+    }
+
+    //package-private so that tests can count the syncs actually sent
+    void sendSync(ZooKeeper zooKeeper, final SyncRound round) {
+        zooKeeper.sync("/", new AsyncCallback.VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                completeSync(round, rc);
+            }
+        }, this);
+    }
+
+    /*
+     * Completes the given round and, if callers arrived while it was in flight, sends the one sync they share.
+     * May be called from the ZooKeeper event thread, so it never blocks waiting for a connection.
+     */
+    private void completeSync(SyncRound round, int rc) {
+        SyncRound next;
+        syncLock.lock();
+        try {
+            next = pendingSync;
+            pendingSync = null;
+            inFlightSync = next;
+        } finally {
+            syncLock.unlock();
+        }
+        round.complete(rc);
+        if (next != null) {
+            ZooKeeper current = zk;
+            if (current == null || shutdown) {
+                completeSync(next, KeeperException.Code.CONNECTIONLOSS.intValue());
+            } else {
+                sendSync(current, next);
+            }
+        }
+    }
+
+    /*
+     * Replaces the current client with a new, not yet connected, one. Must be called holding connectionLock.
+     * The first client of a manager with a session file resumes the saved session, if there is one; returns
+     * whether it did.
+     */
+    private boolean getNewZookeeperInstance() {
+        // Safety check to close ony old Zookeeper instances before issuing a new one.
+        closeConnectionQuietly(zk);
+        if (sessionWatcher != null) {
+            sessionWatcher.signal();
+        }
+
+        ZkSessionFile file = sessionFile;
+        boolean resume = file != null && !resumeAttempted && file.load();
+        resumeAttempted = true;
+        ServerProbe probe = serverProbe;
+        String servers = probe == null ? connectionString : NearestServers.select(connectionString, probe);
+        SessionWatcher watcher = new SessionWatcher(this);
+        try {
+            if (resume) {
+                logger.info("Resuming ZooKeeper session 0x" + Long.toHexString(file.getSessionId()));
+                zk = new ZooKeeper(servers, timeout, watcher, file.getSessionId(), file.getPassword());
+            } else {
+                zk = new ZooKeeper(servers, timeout, watcher);
+            }
+            sessionWatcher = watcher;
         } catch (IOException e) {
             logger.error("IOException gettingZookeeper Instance", e);
+            connectionAttemptFailed();
             throw new RuntimeException(e);
         }
+        return resume;
+    }
+
+    /*
+     * Parks the calling thread until the given client is CONNECTED, or until the maximum connection wait time
+     * elapses. The first time a client connects, it is prepared for use before the fast path may hand it out.
+     */
+    private boolean awaitConnected(ZooKeeper zooKeeper, SessionWatcher watcher) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("The current Zookeeper state is " + zooKeeper.getState() + ".");
+        }
+        if (!watcher.awaitConnected(zooKeeper, maxConnectionWaitTime)) {
+            logger.error("Zookeeper failed to achieve a CONNECTED state.  The current state is " + zooKeeper.getState() + ".");
+            return false;
+        }
+        if (ready != zooKeeper) {
+            connectionLock.lock();
+            try {
+                if (zk == zooKeeper && ready != zooKeeper) {
+                    prepareSession(zooKeeper, watcher);
+                    ready = zooKeeper;
+                }
+            } finally {
+                connectionLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Runs once per client, on its first connection: resets the reconnect backoff, starts session polling (now
+     * that the session timeout has been negotiated), and saves the session to the session file, if there is one.
+     * Must hold connectionLock.
+     */
+    private void prepareSession(ZooKeeper zooKeeper, SessionWatcher watcher) {
+        failedAttempts = 0;
+        reconnectDelayMillis = 0;
+        nextAttemptNanos = 0;
 
         if (zkSessionPollInterval > 0) {
             //stop any previous polling, if it hasn't been stopped already
@@ -190,48 +548,59 @@ public class DefaultZkSessionManager implements ZkSessionManager {
                 poller.stopPolling();
             }
             //create a new poller for this ZooKeeper instance
-            poller = new ZkSessionPoller(zk, zkSessionPollInterval, new SessionPollListener(zk, this));
-            //if (poller != null) {
+            poller = new ZkSessionPoller(zooKeeper, zkSessionPollInterval, new SessionPollListener(zooKeeper, watcher, this));
             poller.startPolling();
-            //}
         }
 
-        return zk;
+        ZkSessionFile file = sessionFile;
+        if (file != null) {
+            boolean resumed = file.getPassword() != null && file.getSessionId() == zooKeeper.getSessionId();
+            file.save(zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+            if (resumed) {
+                collectResumedNodes(zooKeeper, file);
+            }
+        }
     }
 
-    /**
-     * This method ensures a ZK session is fully CONNECTED state, and not in a CONNECTING state.
+    /*
+     * Sets aside the lock nodes the previous incarnation of a resumed session still owns, so that locks can adopt
+     * them, and deletes those nobody adopted within one session timeout--otherwise a lock held by the previous
+     * incarnation would never be released.
      */
-    private void ensureConnectionEstablishedBeforeProceeding() throws KeeperException.SystemErrorException {
-        if (logger.isDebugEnabled()) {
-            logger.debug("The current Zookeeper state is " + zk.getState() + ".");
-        }
-
-        if (zk.getState() == ZooKeeper.States.CONNECTING) {
-            for (int retry = 0; (retry * connectedCheckDelay) < maxConnectionWaitTime; retry++) {
-                if (zk.getState() == ZooKeeper.States.CONNECTED) {
-                    break;
-                } else {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Time waited for Zookeeper CONNECTED state is currently " + (retry * connectedCheckDelay) + " milliseconds.");
-                    }
-
-                    try {
-                        Thread.sleep(connectedCheckDelay);
-                    } catch (InterruptedException e) {
-                        logger.debug("sleep interrupted");
+    private void collectResumedNodes(final ZooKeeper zooKeeper, final ZkSessionFile file) {
+        for (String directory : file.getDirectories()) {
+            try {
+                for (String child : zooKeeper.getChildren(directory, false)) {
+                    Stat stat = zooKeeper.exists(directory + "/" + child, false);
+                    if (stat != null && stat.getEphemeralOwner() == zooKeeper.getSessionId()) {
+                        file.addResumedNode(directory, child);
                     }
                 }
+            } catch (KeeperException.NoNodeException e) {
+                logger.debug("Lock directory " + directory + " no longer exists");
+            } catch (KeeperException e) {
+                logger.warn("Unable to collect the resumed lock nodes under " + directory, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
-
-        if (zk.getState() != ZooKeeper.States.CONNECTED) {
-            if (logger.isDebugEnabled()) {
-                logger.error("Zookeeper failed to achieve a CONNECTED state.  The current state is " + zk.getState() + ".");
+        ZkScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (String node : file.drainResumedNodes()) {
+                    logger.info("Deleting lock node " + node + " left over by the previous incarnation of the session");
+                    zooKeeper.delete(node, -1, new AsyncCallback.VoidCallback() {
+                        @Override
+                        public void processResult(int rc, String path, Object ctx) {
+                            if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                                logger.warn("Unable to delete left over lock node " + path + ": " + KeeperException.Code.get(rc));
+                            }
+                        }
+                    }, null);
+                }
             }
-
-            throw new KeeperException.SystemErrorException();
-        }
+        }, timeout, TimeUnit.MILLISECONDS);
     }
 
     private void closeConnectionQuietly(ZooKeeper zkInstanceToClose) {
@@ -245,8 +614,9 @@ public class DefaultZkSessionManager implements ZkSessionManager {
     }
 
     @Override
-    public synchronized void shutdown() {
-        synchronized (DefaultZkSessionManager.class) {
+    public void shutdown() {
+        connectionLock.lock();
+        try {
             logger.info("Closing ZkSessionManager");
             try {
                 if (zk != null) {
@@ -259,21 +629,62 @@ public class DefaultZkSessionManager implements ZkSessionManager {
             } finally {
                 executor.shutdown();
                 shutdown = true;
+                //the session is gone, so there is nothing left to resume
+                if (sessionFile != null) {
+                    sessionFile.clear();
+                }
+                if (sessionWatcher != null) {
+                    sessionWatcher.signal();
+                }
+                //wake up the threads waiting out a reconnect delay
+                reconnectDelay.signalAll();
             }
+        } finally {
+            connectionLock.unlock();
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Registrations are counted: a listener added several times is notified once per event, and stays
+     * registered until it has been removed as many times as it was added.
+     */
     @Override
     public void addConnectionListener(ConnectionListener listener) {
-        synchronized (DefaultZkSessionManager.class) {
-            listeners.add(listener);
+        final boolean[] added = new boolean[1];
+        listeners.compute(listener, new BiFunction<ConnectionListener, ListenerSlot, ListenerSlot>() {
+            @Override
+            public ListenerSlot apply(ConnectionListener key, ListenerSlot slot) {
+                if (slot == null) {
+                    slot = new ListenerSlot(key);
+                    added[0] = true;
+                }
+                slot.registrations++;
+                return slot;
+            }
+        });
+        if (added[0]) {
+            listenersVersion.incrementAndGet();
         }
     }
 
     @Override
     public void removeConnectionListener(ConnectionListener listener) {
-        synchronized (DefaultZkSessionManager.class) {
-            listeners.remove(listener);
+        final boolean[] removed = new boolean[1];
+        listeners.computeIfPresent(listener, new BiFunction<ConnectionListener, ListenerSlot, ListenerSlot>() {
+            @Override
+            public ListenerSlot apply(ConnectionListener key, ListenerSlot slot) {
+                if (--slot.registrations > 0) {
+                    return slot;
+                }
+                slot.removed = true;
+                removed[0] = true;
+                return null;
+            }
+        });
+        if (removed[0]) {
+            listenersVersion.incrementAndGet();
         }
     }
 
@@ -285,28 +696,154 @@ public class DefaultZkSessionManager implements ZkSessionManager {
         notifyState(event.getState());
     }
 
-    private void notifyState(final Watcher.Event.KeeperState state) {
-        executor.submit(new Runnable() {
-            @Override
-            public void run() {
+    private void notifyState(Watcher.Event.KeeperState state) {
+        if (state != Watcher.Event.KeeperState.Expired
+                && state != Watcher.Event.KeeperState.SyncConnected
+                && state != Watcher.Event.KeeperState.Disconnected) {
+            return;
+        }
+        for (ListenerSlot slot : listenerSnapshot()) {
+            slot.enqueue(state);
+        }
+    }
+
+    /*
+     * Returns the listeners registered at the time of the call. The snapshot is cached until the next change
+     * in registrations; a registration racing with a rebuild merely causes one more rebuild later on.
+     */
+    private ListenerSlot[] listenerSnapshot() {
+        long version = listenersVersion.get();
+        ListenerSnapshot snapshot = listenerSnapshot;
+        if (snapshot.version != version) {
+            snapshot = new ListenerSnapshot(version, listeners.values().toArray(new ListenerSlot[0]));
+            listenerSnapshot = snapshot;
+        }
+        return snapshot.slots;
+    }
+
+    private static final class ListenerSnapshot {
+        private final long version;
+        private final ListenerSlot[] slots;
+
+        private ListenerSnapshot(long version, ListenerSlot[] slots) {
+            this.version = version;
+            this.slots = slots;
+        }
+    }
+
+    /*
+     * A registered listener, together with the events still to be delivered to it. Events for one listener
+     * are delivered one at a time and in order, while different listeners are served in parallel.
+     */
+    private final class ListenerSlot implements Runnable {
+        private final ConnectionListener listener;
+        private final Queue<Watcher.Event.KeeperState> pending = new ConcurrentLinkedQueue<Watcher.Event.KeeperState>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        //only accessed within the atomic compute operations of the listeners map
+        private int registrations;
+        private volatile boolean removed;
+
+        private ListenerSlot(ConnectionListener listener) {
+            this.listener = listener;
+        }
+
+        private void enqueue(Watcher.Event.KeeperState state) {
+            pending.add(state);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Dropping connection events for " + listener + ", the session manager has been shut down");
+                    pending.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Watcher.Event.KeeperState state;
+                while ((state = pending.poll()) != null) {
+                    deliver(state);
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            //an event may have been queued after our last poll, but before we released the slot
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void deliver(Watcher.Event.KeeperState state) {
+            if (removed) {
+                return;
+            }
+            CallBudget budget = new CallBudget(listener, state, Thread.currentThread());
+            ScheduledFuture<?> deadline = ZkScheduler.schedule(budget, listenerTimeBudgetMillis, TimeUnit.MILLISECONDS);
+            try {
                 if (state == Watcher.Event.KeeperState.Expired) {
                     //tell everyone that all their watchers and ephemeral nodes have been removed--suck
-                    for (ConnectionListener listener : listeners) {
-                        listener.expired();
-                    }
+                    listener.expired();
                 } else if (state == Watcher.Event.KeeperState.SyncConnected) {
                     //tell everyone that we've reconnected to the Server, and they should make sure that their watchers
                     //are in place
-                    for (ConnectionListener listener : listeners) {
-                        listener.syncConnected();
-                    }
-                } else if (state == Watcher.Event.KeeperState.Disconnected) {
-                    for (ConnectionListener listener : listeners) {
-                        listener.disconnected();
-                    }
+                    listener.syncConnected();
+                } else {
+                    listener.disconnected();
                 }
+            } catch (Throwable t) {
+                logger.error("ConnectionListener " + listener + " failed handling " + state, t);
+            } finally {
+                deadline.cancel(false);
+                budget.finish();
             }
-        });
+        }
+    }
+
+    /*
+     * Interrupts a listener call which has run past its time budget.
+     */
+    private static final class CallBudget implements Runnable {
+        private final ConnectionListener listener;
+        private final Watcher.Event.KeeperState state;
+        private final Thread caller;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean finished;
+
+        private CallBudget(ConnectionListener listener, Watcher.Event.KeeperState state, Thread caller) {
+            this.listener = listener;
+            this.state = state;
+            this.caller = caller;
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (!finished) {
+                    logger.warn("ConnectionListener " + listener + " exceeded its time budget handling " + state + ", interrupting it");
+                    caller.interrupt();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void finish() {
+            lock.lock();
+            try {
+                finished = true;
+                //don't leak an interrupt meant for the listener into the next task of this pooled thread
+                Thread.interrupted();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     /*
@@ -315,10 +852,12 @@ public class DefaultZkSessionManager implements ZkSessionManager {
     */
     private static class SessionPollListener extends ConnectionListenerSkeleton {
         private final ZooKeeper zk;
+        private final SessionWatcher watcher;
         private final DefaultZkSessionManager sessionManager;
 
-        private SessionPollListener(ZooKeeper zk, DefaultZkSessionManager sessionManager) {
+        private SessionPollListener(ZooKeeper zk, SessionWatcher watcher, DefaultZkSessionManager sessionManager) {
             this.zk = zk;
+            this.watcher = watcher;
             this.sessionManager = sessionManager;
         }
 
@@ -332,13 +871,50 @@ public class DefaultZkSessionManager implements ZkSessionManager {
                 logger.error("Error notifying application of Expired session", e);
             }
 
-            //Close the connection
-            this.sessionManager.closeConnectionQuietly(zk);
+            //Close the connection, and release anyone still waiting for it to connect. This is called from the
+            //poller's ping callback on the ZooKeeper event thread, which ZooKeeper.close() would block, so the
+            //close runs on the listener executor instead
+            try {
+                sessionManager.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sessionManager.closeConnectionQuietly(zk);
+                        watcher.signal();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //shutdown() closes the connection itself
+                logger.debug("Not closing the expired ZooKeeper session, the session manager has been shut down");
+                watcher.signal();
+            }
+        }
+    }
+
+    /*
+     * A single sync("/") shared by every caller of syncIfStale() that joined it.
+     */
+    static final class SyncRound {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int rc;
+
+        private void complete(int rc) {
+            this.rc = rc;
+            done.countDown();
+        }
+
+        private void await() throws KeeperException, InterruptedException {
+            done.await();
+            if (rc != KeeperException.Code.OK.intValue()) {
+                throw KeeperException.create(KeeperException.Code.get(rc), "/");
+            }
         }
     }
 
     private static class SessionWatcher implements Watcher {
         private final DefaultZkSessionManager manager;
+        //threads waiting for the CONNECTED state are parked on this condition
+        private final ReentrantLock connectionLock = new ReentrantLock();
+        private final Condition connectionSignal = connectionLock.newCondition();
 
         private SessionWatcher(DefaultZkSessionManager manager) {
             this.manager = manager;
@@ -346,8 +922,57 @@ public class DefaultZkSessionManager implements ZkSessionManager {
 
         @Override
         public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                signal();
+            }
             manager.notifyListeners(event);
         }
+
+        /*
+         * Wakes every parked thread so that it re-checks the connection state. ZooKeeper updates its state
+         * before delivering the matching event, so a waiter can never miss the transition to CONNECTED.
+         */
+        private void signal() {
+            connectionLock.lock();
+            try {
+                connectionSignal.signalAll();
+            } finally {
+                connectionLock.unlock();
+            }
+        }
+
+        /*
+         * Parks until the client this watcher is registered with becomes CONNECTED, is closed, or the timeout
+         * elapses, returning true only if it is CONNECTED. Like the sleeps it replaces this is not interruptible,
+         * but the interrupt status is restored on return.
+         */
+        private boolean awaitConnected(ZooKeeper zooKeeper, long timeoutMillis) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            boolean interrupted = false;
+            connectionLock.lock();
+            try {
+                while (true) {
+                    ZooKeeper.States state = zooKeeper.getState();
+                    if (state == ZooKeeper.States.CONNECTED) {
+                        return true;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (!state.isAlive() || remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        connectionSignal.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                connectionLock.unlock();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
 }
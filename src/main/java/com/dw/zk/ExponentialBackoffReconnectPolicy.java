@@ -0,0 +1,46 @@
+package com.dw.zk;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Description: Capped exponential backoff with decorrelated jitter: each delay is drawn at random between
+ * the base delay and three times the previous delay, and never exceeds the maximum delay.
+ * <p>
+ * The delays grow roughly exponentially while attempts keep failing, and the randomness keeps the clients of
+ * an ensemble which went down together from reconnecting in lockstep when it comes back.
+ * @author caohui
+ */
+public class ExponentialBackoffReconnectPolicy implements ReconnectPolicy {
+
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	/**
+	 * @param baseDelayMillis the shortest delay, used after the first failure
+	 * @param maxDelayMillis  the longest delay
+	 */
+	public ExponentialBackoffReconnectPolicy(long baseDelayMillis, long maxDelayMillis) {
+		if(baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("Invalid delays: base " + baseDelayMillis + ", max " + maxDelayMillis);
+		}
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	@Override
+	public long getDelayMillis(int failedAttempts, long previousDelayMillis) {
+		long upper = Math.min(maxDelayMillis, Math.max(baseDelayMillis, previousDelayMillis * 3));
+		if(upper <= baseDelayMillis) {
+			return baseDelayMillis;
+		}
+		return ThreadLocalRandom.current().nextLong(baseDelayMillis, upper + 1);
+	}
+
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+}
@@ -0,0 +1,30 @@
+package com.dw.zk;
+
+import java.util.List;
+
+/**
+ * Description: A held distributed lock which is not bound to a thread: it is released through the handle,
+ * from any thread, rather than by the thread which acquired it.
+ * <p>
+ * Handles are not reentrant, and releasing one more than once does nothing. They can be used with
+ * try-with-resources, {@link #close()} being the same as {@link #release()}.
+ * @author caohui
+ */
+public interface LockHandle extends AutoCloseable {
+
+	/**
+	 * @return the full paths of the lock nodes standing for the held lock
+	 */
+	List<String> getLockNodes();
+
+	/**
+	 * Description: Releases the lock, deleting its nodes.
+	 */
+	void release();
+
+	/**
+	 * Description: Releases the lock, see {@link #release()}.
+	 */
+	@Override
+	void close();
+}
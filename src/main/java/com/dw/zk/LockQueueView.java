@@ -0,0 +1,130 @@
+package com.dw.zk;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Description: The queue of a lock directory as seen by one waiter, from a single listing of the directory.
+ * <p>
+ * The sequence number of every node is parsed once, when the view is loaded, and kept in a sorted primitive
+ * array, so that the predecessor of a node is found with a binary search. Nodes queued after the waiter's own
+ * node never matter to it, and the nodes before it can only leave the queue: after the first listing, the view
+ * is kept current by removing the predecessors found to be gone, instead of listing the directory again.
+ * <p>
+ * The view may cover several prefixes, e.g. the readers and writers of a read-write lock, which share the
+ * sequence counter of their directory.
+ * <p>
+ * A view is bound to the session it was loaded on (see {@link #isLoadedFor(long)}), as a new session no longer
+ * owns the node the view was loaded for. Not thread safe: each acquisition uses its own view.
+ * @author caohui
+ */
+final class LockQueueView {
+
+	private static final long[] NO_SEQUENCES = new long[0];
+	private static final String[] NO_NAMES = new String[0];
+
+	private final char delimiter;
+	private final String[] prefixes;
+	// the sequence numbers of the nodes in the queue, ascending, and the names of the nodes at the same index
+	private long[] sequences = NO_SEQUENCES;
+	private String[] names = NO_NAMES;
+	private int size;
+	// the session the view was loaded on, 0 if not loaded yet
+	private long sessionId;
+
+	LockQueueView(char delimiter, String ... prefixes) {
+		this.delimiter = delimiter;
+		this.prefixes = prefixes.clone();
+	}
+
+	boolean isLoadedFor(long sessionId) {
+		return this.sessionId != 0 && this.sessionId == sessionId;
+	}
+
+	/**
+	 * Description: Replaces the content of the view with the nodes of the given listing which have one of the
+	 * prefixes of the view.
+	 *
+	 * @param children the children of the lock directory
+	 * @param sessionId the session the listing was made on
+	 */
+	void load(List<String> children, long sessionId) {
+		String[] matching = new String[children.size()];
+		// sort the sequences along with the index of their node: sequence in the high half, index in the low half
+		long[] keys = new long[children.size()];
+		int count = 0;
+		for(String child : children) {
+			if(hasPrefix(child)) {
+				keys[count] = ((long) ZkInternalUtils.parseSequenceNumber(child, delimiter) << 32) | count;
+				matching[count] = child;
+				count++;
+			}
+		}
+		Arrays.sort(keys, 0, count);
+		sequences = new long[count];
+		names = new String[count];
+		for(int i=0; i<count; i++) {
+			sequences[i] = keys[i] >> 32;
+			names[i] = matching[(int) keys[i]];
+		}
+		size = count;
+		this.sessionId = sessionId;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	/**
+	 * @return the name of the node right before the given one, or null if it is first (or not in the queue)
+	 */
+	String predecessor(String name) {
+		int index = indexOf(name);
+		return index > 0 ? names[index - 1] : null;
+	}
+
+	/**
+	 * @return the name of the nearest node before the given one which has the given prefix, or null if there is none
+	 */
+	String predecessor(String name, String prefix) {
+		for(int i=indexOf(name) - 1; i>=0; i--) {
+			if(names[i].startsWith(prefix)) {
+				return names[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Description: Removes a node which has left the queue. Does nothing if it is not in the view.
+	 */
+	void remove(String name) {
+		int index = indexOf(name);
+		if(index < 0) {
+			return;
+		}
+		int moved = size - index - 1;
+		System.arraycopy(sequences, index + 1, sequences, index, moved);
+		System.arraycopy(names, index + 1, names, index, moved);
+		size--;
+		names[size] = null;
+	}
+
+	private boolean hasPrefix(String child) {
+		for(String prefix : prefixes) {
+			if(child.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int indexOf(String name) {
+		int index = Arrays.binarySearch(sequences, 0, size, ZkInternalUtils.parseSequenceNumber(name, delimiter));
+		return index >= 0 && names[index].equals(name) ? index : -1;
+	}
+}
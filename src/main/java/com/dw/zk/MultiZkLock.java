@@ -0,0 +1,456 @@
+package com.dw.zk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dw.exception.ZkRuntimeException;
+
+/**
+ * Description: Acquires the locks of several keys at once. The lock of a key is the lock directory
+ * {@code baseNode/key}, with the same nodes as {@link ReentrantZkLock}, so that both exclude each other.
+ * <p>
+ * The nodes of all the keys are created in a single {@link ZooKeeper#multi(Iterable)} transaction, in the
+ * canonical (sorted) order of the keys: they enter every queue at the same point in the history, so two
+ * multi-key acquisitions always queue in the same order on the keys they share, and cannot deadlock. The
+ * queues are then listed, and the predecessors watched, for all the keys at once with pipelined asynchronous
+ * requests: acquiring N keys costs about the latency of one lock, not of N.
+ * <p>
+ * {@link #acquireAny(Collection, long, TimeUnit)} works the other way round, for pools of interchangeable
+ * resources: it queues on every key in parallel, takes whichever lock comes free first, and withdraws from the
+ * other queues.
+ * <p>
+ * The locks are held through the returned {@link LockHandle}, and are neither reentrant nor bound to a thread.
+ * @author caohui
+ */
+public class MultiZkLock extends ZkPrimitive {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MultiZkLock.class);
+
+	private static final String LOCKPREFIX = "lock";
+
+	/**
+	 * Description: Constructs a new multi-key lock on the specified node, using Open ACL privileges.
+	 *
+	 * @param baseNode the directory of the lock directories of the keys
+	 * @param zkSessionManager
+	 */
+	public MultiZkLock(String baseNode, ZkSessionManager zkSessionManager) {
+		this(baseNode, zkSessionManager, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+	}
+
+	public MultiZkLock(String baseNode, ZkSessionManager zkSessionManager, List<ACL> privileges) {
+		super(baseNode, zkSessionManager, privileges);
+	}
+
+	/**
+	 * Description: Acquires the locks of all the given keys, waiting as long as it takes.
+	 */
+	public LockHandle lock(String ... keys) {
+		try {
+			return acquire(keys, -1, false);
+		}catch(InterruptedException e) {
+			// cannot happen: the wait is not interruptible
+			Thread.currentThread().interrupt();
+			throw new ZkRuntimeException(e);
+		}
+	}
+
+	public LockHandle lockInterruptibly(String ... keys) throws InterruptedException {
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		return acquire(keys, -1, true);
+	}
+
+	/**
+	 * Description: Acquires the locks of all the given keys if they are all free right away.
+	 *
+	 * @return the handle of the locks, or null if any of them is held
+	 */
+	public LockHandle tryLock(String ... keys) {
+		try {
+			return acquire(keys, 0, false);
+		}catch(InterruptedException e) {
+			// cannot happen: there is no wait
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * @return the handle of the locks, or null if they could not all be acquired in time
+	 */
+	public LockHandle tryLock(long time, TimeUnit unit, String ... keys) throws InterruptedException {
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		return acquire(keys, Math.max(0, unit.toNanos(time)), true);
+	}
+
+	/**
+	 * Description: Acquires the lock of one of the given keys, whichever comes free first. The nodes of all the
+	 * keys are queued in parallel, and once one of them holds its lock the others are withdrawn together, so
+	 * that the wait is the shortest of the waits on the keys rather than their sum.
+	 * All Rights Reserved.
+	 *
+	 * @param keys the candidates, all interchangeable
+	 * @param timeout the maximum time to wait; 0 not to wait at all
+	 * @return the handle of the lock acquired, whose single node tells which key it is; or null if none could be
+	 * acquired in time
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public LockHandle acquireAny(Collection<String> keys, long timeout, TimeUnit unit) throws InterruptedException {
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		return awaitLocks(enqueueAll(keys), true, Math.max(0, unit.toNanos(timeout)), true);
+	}
+
+	// see ReentrantZkLock#acquireNode for the arguments
+	private LockHandle acquire(String[] keys, long timeoutNanos, boolean interruptible) throws InterruptedException {
+		return awaitLocks(createNodes(keys), false, timeoutNanos, interruptible);
+	}
+
+	/*
+	 * Waits until the queued nodes hold their locks: all of them, or any one of them if any is set, in which case
+	 * the others are deleted. On timeout, interruption or failure all the nodes are deleted.
+	 */
+	private LockHandle awaitLocks(List<KeyQueue> queues, boolean any, long timeoutNanos, boolean interruptible) throws InterruptedException {
+		List<KeyQueue> acquired = null;
+		setConnectionListener();
+		// the watches on our predecessors wake this thread alone, not the others waiting on this lock
+		Waiter waiter = newWaiter();
+		try {
+			long deadline = System.nanoTime() + timeoutNanos;
+			ZkAsyncClient client = new ZkAsyncClient(zkSessionManager);
+			List<KeyQueue> pending = new ArrayList<KeyQueue> (queues);
+			while(true) {
+				long seen = waiter.getSignals();
+				boolean progress = checkPredecessors(client, pending, timeoutNanos != 0 ? waiter : null);
+				if(any && pending.size() < queues.size()) {
+					for(KeyQueue queue : queues) {
+						if(!pending.contains(queue)) {
+							acquired = Collections.singletonList(queue);
+							return new Handle(acquired);
+						}
+					}
+				}
+				if(progress) {
+					continue;
+				}
+				if(pending.isEmpty()) {
+					acquired = queues;
+					return new Handle(queues);
+				}
+				if(timeoutNanos == 0) {
+					return null;
+				}
+				localLock.lock();
+				try {
+					// wait for a predecessor to go (or the session to change) unless it already has
+					while(waiter.getSignals() == seen) {
+						if(timeoutNanos < 0) {
+							if(interruptible) {
+								waiter.getCondition().await();
+							}else {
+								waiter.getCondition().awaitUninterruptibly();
+							}
+							continue;
+						}
+						long remaining = deadline - System.nanoTime();
+						if(remaining <= 0 || remaining <= zkSessionManager.getRoundTripNanos()) {
+							return null;
+						}
+						waiter.getCondition().awaitNanos(remaining);
+					}
+				}finally {
+					localLock.unlock();
+				}
+			}
+		}catch(KeeperException e) {
+			LOGGER.error(e.getMessage(), e);
+			throw new ZkRuntimeException(e);
+		}finally {
+			removeWaiter(waiter);
+			removeConnectionListener();
+			if(acquired == null) {
+				deleteNodes(queues);
+			}else if(acquired.size() < queues.size()) {
+				List<KeyQueue> withdrawn = new ArrayList<KeyQueue> (queues);
+				withdrawn.removeAll(acquired);
+				deleteNodes(withdrawn);
+			}
+		}
+	}
+
+	/*
+	 * Checks the immediate predecessor of every pending node, all at once, leaving a watch on those still there if
+	 * a watcher is given; the queues not listed on the current session yet are listed first. Removes the nodes which
+	 * hold their lock from pending, and returns true if a predecessor turned out to be gone, so that the next one
+	 * must be checked right away.
+	 */
+	private boolean checkPredecessors(ZkAsyncClient client, List<KeyQueue> pending, Watcher watcher) throws KeeperException, InterruptedException {
+		long sessionId = zkSessionManager.getZooKeeper().getSessionId();
+		List<CompletableFuture<List<String>>> listings = new ArrayList<CompletableFuture<List<String>>> ();
+		for(KeyQueue queue : pending) {
+			listings.add(queue.view.isLoadedFor(sessionId) ? null : client.getChildren(queue.directory, null));
+		}
+		for(int i=0; i<pending.size(); i++) {
+			if(listings.get(i) != null) {
+				KeyQueue queue = pending.get(i);
+				queue.view.load(await(listings.get(i)), sessionId);
+				if(!queue.view.contains(queue.name)) {
+					// our node is gone: the session which created it has expired
+					throw KeeperException.create(KeeperException.Code.NONODE, queue.node);
+				}
+			}
+		}
+
+		List<CompletableFuture<Stat>> probes = new ArrayList<CompletableFuture<Stat>> ();
+		for(KeyQueue queue : pending) {
+			String predecessor = queue.view.predecessor(queue.name);
+			probes.add(predecessor == null ? null : client.exists(queue.directory + "/" + predecessor, watcher));
+		}
+		boolean progress = false;
+		List<KeyQueue> waiting = new ArrayList<KeyQueue> ();
+		for(int i=0; i<pending.size(); i++) {
+			KeyQueue queue = pending.get(i);
+			if(probes.get(i) == null) {
+				continue;
+			}
+			if(await(probes.get(i)) == null) {
+				// nodes are only ever queued after ours, so the one before the gone node is our next predecessor
+				queue.view.remove(queue.view.predecessor(queue.name));
+				progress = true;
+			}
+			waiting.add(queue);
+		}
+		pending.retainAll(waiting);
+		return progress;
+	}
+
+	/*
+	 * Creates the nodes of all the keys in one transaction, in the order of the keys. The directories of new keys
+	 * are created on demand, when the transaction fails for the lack of one.
+	 */
+	private List<KeyQueue> createNodes(String[] keys) {
+		if(keys == null || keys.length == 0) {
+			throw new IllegalArgumentException("No keys specified!");
+		}
+		List<KeyQueue> queues = new ArrayList<KeyQueue> ();
+		List<Op> creates = new ArrayList<Op> ();
+		byte[] data = ReentrantZkLock.nodeData();
+		ZkSessionFile sessionFile = ZkSessionFile.forSession(zkSessionManager.getZooKeeper().getSessionId());
+		for(String key : new TreeSet<String> (Arrays.asList(keys))) {
+			String directory = baseNode + "/" + key;
+			queues.add(new KeyQueue(directory));
+			creates.add(Op.create(queues.get(queues.size() - 1).getLockPath(), data, privileges, CreateMode.EPHEMERAL_SEQUENTIAL));
+			if(sessionFile != null) {
+				// recorded before creating the node, so that a crash right after the create still finds it
+				sessionFile.recordDirectory(directory);
+			}
+		}
+		List<OpResult> results;
+		try {
+			try {
+				results = zkSessionManager.getZooKeeper().multi(creates);
+			}catch(KeeperException.NoNodeException e) {
+				for(KeyQueue queue : queues) {
+					ZkUtils.notExitCreate(zkSessionManager, queue.directory);
+				}
+				results = zkSessionManager.getZooKeeper().multi(creates);
+			}
+		}catch(KeeperException e) {
+			LOGGER.error("批量创建锁节点失败:" + baseNode, e);
+			throw new ZkRuntimeException(e);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ZkRuntimeException(e);
+		}
+		for(int i=0; i<queues.size(); i++) {
+			queues.get(i).setNode(((OpResult.CreateResult) results.get(i)).getPath());
+		}
+		return queues;
+	}
+
+	/*
+	 * Creates the nodes of the keys with pipelined asynchronous requests, each on its own: a missing directory only
+	 * holds back the node of its key.
+	 */
+	private List<KeyQueue> enqueueAll(Collection<String> keys) {
+		if(keys == null || keys.isEmpty()) {
+			throw new IllegalArgumentException("No keys specified!");
+		}
+		ZkAsyncClient client = new ZkAsyncClient(zkSessionManager);
+		List<KeyQueue> queues = new ArrayList<KeyQueue> ();
+		List<CompletableFuture<String>> creates = new ArrayList<CompletableFuture<String>> ();
+		byte[] data = ReentrantZkLock.nodeData();
+		ZkSessionFile sessionFile = ZkSessionFile.forSession(zkSessionManager.getZooKeeper().getSessionId());
+		for(String key : new LinkedHashSet<String> (keys)) {
+			KeyQueue queue = new KeyQueue(baseNode + "/" + key);
+			queues.add(queue);
+			if(sessionFile != null) {
+				sessionFile.recordDirectory(queue.directory);
+			}
+			creates.add(client.create(queue.getLockPath(), data, privileges, CreateMode.EPHEMERAL_SEQUENTIAL));
+		}
+		try {
+			for(int i=0; i<queues.size(); i++) {
+				KeyQueue queue = queues.get(i);
+				try {
+					queue.setNode(await(creates.get(i)));
+				}catch(KeeperException.NoNodeException e) {
+					ZkUtils.notExitCreate(zkSessionManager, queue.directory);
+					queue.setNode(ZkUtils.ensureCreate(zkSessionManager, queue.getLockPath(), data, privileges, CreateMode.EPHEMERAL_SEQUENTIAL));
+				}
+			}
+		}catch(KeeperException e) {
+			LOGGER.error("创建锁节点失败:" + baseNode, e);
+			deleteCreated(queues, creates);
+			throw new ZkRuntimeException(e);
+		}catch(RuntimeException e) {
+			deleteCreated(queues, creates);
+			throw e;
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			deleteCreated(queues, creates);
+			throw new ZkRuntimeException(e);
+		}
+		return queues;
+	}
+
+	// deletes the nodes created so far by enqueueAll, once all its requests are answered
+	private void deleteCreated(List<KeyQueue> queues, List<CompletableFuture<String>> creates) {
+		for(int i=0; i<queues.size(); i++) {
+			KeyQueue queue = queues.get(i);
+			if(queue.node == null) {
+				try {
+					queue.setNode(creates.get(i).join());
+				}catch(CompletionException e) {
+					// never created
+				}
+			}
+		}
+		deleteNodes(queues);
+	}
+
+	/*
+	 * Deletes the nodes with pipelined requests, and waits for the outcome even if interrupted, as the locks would
+	 * stay held until the session ends otherwise; the nodes whose delete failed are deleted one by one.
+	 */
+	private void deleteNodes(List<KeyQueue> queues) {
+		ZkAsyncClient client = new ZkAsyncClient(zkSessionManager);
+		List<CompletableFuture<Boolean>> deletes = new ArrayList<CompletableFuture<Boolean>> ();
+		for(KeyQueue queue : queues) {
+			deletes.add(queue.node == null ? null : client.safeDelete(queue.node, -1));
+		}
+		for(int i=0; i<queues.size(); i++) {
+			if(deletes.get(i) == null) {
+				continue;
+			}
+			try {
+				deletes.get(i).join();
+			}catch(CompletionException e) {
+				LOGGER.warn("删除锁节点失败，重试:" + queues.get(i).node, e.getCause());
+				boolean interrupted = Thread.interrupted();
+				try {
+					ZkUtils.ensureDelete(zkSessionManager, queues.get(i).node, -1);
+				}catch(InterruptedException ie) {
+					interrupted = true;
+					client.safeDelete(queues.get(i).node, -1);
+				}finally {
+					if(interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+	}
+
+	// waits for the outcome of an asynchronous request, unwrapping its failure
+	private static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+		try {
+			return future.join();
+		}catch(CompletionException e) {
+			if(e.getCause() instanceof KeeperException) {
+				throw (KeeperException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// the lock node of one key and the view of its queue
+	private static final class KeyQueue {
+		private final String directory;
+		private final LockQueueView view = new LockQueueView(ReentrantZkLock.LOCKDELIMITER, LOCKPREFIX);
+		private String node;
+		private String name;
+
+		private KeyQueue(String directory) {
+			this.directory = directory;
+		}
+
+		private String getLockPath() {
+			return directory + "/" + LOCKPREFIX + ReentrantZkLock.LOCKDELIMITER;
+		}
+
+		private void setNode(String node) {
+			this.node = node;
+			this.name = node.substring(node.lastIndexOf('/') + 1);
+		}
+	}
+
+	private final class Handle implements LockHandle {
+		private final List<KeyQueue> queues;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Handle(List<KeyQueue> queues) {
+			this.queues = queues;
+		}
+
+		@Override
+		public List<String> getLockNodes() {
+			List<String> nodes = new ArrayList<String> ();
+			for(KeyQueue queue : queues) {
+				nodes.add(queue.node);
+			}
+			return Collections.unmodifiableList(nodes);
+		}
+
+		@Override
+		public void release() {
+			if(released.compareAndSet(false, true)) {
+				deleteNodes(queues);
+			}
+		}
+
+		@Override
+		public void close() {
+			release();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.dw.zk;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description: Narrows a connection string down to the servers nearest to this process.
+ * <p>
+ * The ZooKeeper client shuffles the servers of its connection string and connects to them in that random
+ * order, so sorting them by latency would have no effect. Instead, every server is probed, and only the
+ * nearest tier--the servers whose round-trip time is within {@value #TIER_FACTOR} times that of the nearest
+ * one, plus {@value #TIER_SLACK_MICROS} µs--is kept, nearest first. Unreachable servers are left out. If no
+ * server can be reached, the connection string is returned unchanged, so that the client keeps trying all of
+ * them.
+ * <p>
+ * The client can only fail over to the servers of its connection string, and the session expires if it
+ * cannot reach any of them in time. So that the session survives as many failed servers as the ensemble
+ * does, the tier is padded with the next nearest servers (then with the unreachable ones) up to one more
+ * than the number of failures a quorum of the listed servers tolerates: 2 servers out of 3, 3 out of 5. The
+ * padding servers are as likely to be picked by the client as those of the tier, which is the price of
+ * keeping the session through the loss of a server.
+ * @author caohui
+ */
+final class NearestServers {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NearestServers.class);
+
+	private static final int DEFAULT_PORT = 2181;
+	private static final long TIER_FACTOR = 2;
+	private static final long TIER_SLACK_MICROS = 500;
+
+	private NearestServers() {}
+
+	// probes block on I/O, so they get threads of their own; idle threads die off after a minute
+	private static final class Holder {
+		private static final ExecutorService PROBES = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable);
+				t.setName("zk-server-probe-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Description: Probes the servers of the connection string concurrently, and returns a connection string
+	 * made of the nearest ones (keeping the chroot, if any).
+	 */
+	static String select(String connectionString, final ServerProbe probe) {
+		String chroot = "";
+		String hostList = connectionString;
+		int slash = connectionString.indexOf('/');
+		if(slash >= 0) {
+			chroot = connectionString.substring(slash);
+			hostList = connectionString.substring(0, slash);
+		}
+
+		List<String> hosts = new ArrayList<String> ();
+		List<CompletableFuture<Long>> probes = new ArrayList<CompletableFuture<Long>> ();
+		for(String host : hostList.split(",")) {
+			host = host.trim();
+			if(host.isEmpty()) {
+				continue;
+			}
+			final InetSocketAddress address = toAddress(host);
+			hosts.add(host);
+			probes.add(CompletableFuture.supplyAsync(new Supplier<Long>() {
+				@Override
+				public Long get() {
+					return probe.probe(address);
+				}
+			}, Holder.PROBES));
+		}
+
+		final List<Long> roundTrips = new ArrayList<Long> ();
+		List<Integer> reachable = new ArrayList<Integer> ();
+		for(int i=0; i<probes.size(); i++) {
+			long roundTrip;
+			try {
+				roundTrip = probes.get(i).join();
+			}catch(RuntimeException e) {
+				LOGGER.warn("Probing zk server " + hosts.get(i) + " failed", e);
+				roundTrip = -1;
+			}
+			roundTrips.add(roundTrip);
+			if(roundTrip >= 0) {
+				reachable.add(i);
+			}
+		}
+		if(reachable.isEmpty()) {
+			LOGGER.warn("None of the zk servers " + hostList + " answered the probe, connecting to all of them");
+			return connectionString;
+		}
+
+		Collections.sort(reachable, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(roundTrips.get(a), roundTrips.get(b));
+			}
+		});
+		long limit = roundTrips.get(reachable.get(0)) * TIER_FACTOR + TIER_SLACK_MICROS * 1000;
+		// enough servers to outlast every failure the ensemble outlasts
+		int minServers = (hosts.size() - 1) / 2 + 1;
+		List<Integer> candidates = new ArrayList<Integer> (reachable);
+		for(int i=0; i<hosts.size(); i++) {
+			if(roundTrips.get(i) < 0) {
+				candidates.add(i);
+			}
+		}
+		StringBuilder nearest = new StringBuilder();
+		int selected = 0;
+		for(Integer i : candidates) {
+			boolean nearTier = roundTrips.get(i) >= 0 && roundTrips.get(i) <= limit;
+			if(!nearTier && selected >= minServers) {
+				break;
+			}
+			if(nearest.length() > 0) {
+				nearest.append(',');
+			}
+			nearest.append(hosts.get(i));
+			selected++;
+		}
+		String servers = nearest.append(chroot).toString();
+		if(LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Nearest zk servers of " + connectionString + ": " + servers);
+		}
+		return servers;
+	}
+
+	private static InetSocketAddress toAddress(String host) {
+		int colon = host.lastIndexOf(':');
+		// resolved by the probe, so that slow lookups run concurrently too
+		if(colon < 0) {
+			return InetSocketAddress.createUnresolved(host, DEFAULT_PORT);
+		}
+		return InetSocketAddress.createUnresolved(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1).trim()));
+	}
+}
@@ -0,0 +1,136 @@
+package com.dw.zk;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * A {@link ZkSessionManager} which spreads its work over several independent ZooKeeper sessions to the
+ * same ensemble.
+ * <p>
+ * A single ZooKeeper client owns one socket and one event thread, so everything going through it is
+ * serialized. This implementation opens {@code poolSize} sessions instead, and assigns every
+ * {@link ZkPrimitive} to one of them by hashing its base node (see {@link #getSessionManager(String)}).
+ * All ephemeral nodes and watches of a primitive therefore live on the one session it was assigned, while
+ * different primitives are served by different sockets and event threads.
+ * <p>
+ * Calls made on the pool itself (rather than on one of its sessions) behave as follows:
+ * {@link #getZooKeeper()} returns the client of the first session; {@link #syncIfStale()} syncs every
+ * session; connection listeners are attached to every session, so they are notified of events on any of them.
+ *
+ * @author caohui
+ */
+public class PooledZkSessionManager implements ZkSessionManager {
+
+	private final ZkSessionManager[] sessions;
+	private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+	/**
+	 * Creates a pool of {@code poolSize} {@link DefaultZkSessionManager}s to the same ensemble.
+	 *
+	 * @param connectionString the string to connect to ZooKeeper with (in the form of (serverIP):(port),...)
+	 * @param timeout          the timeout to use before expiring each ZooKeeper session.
+	 * @param poolSize         the number of sessions to open
+	 */
+	public PooledZkSessionManager(String connectionString, int timeout, int poolSize) {
+		this(createSessions(connectionString, timeout, poolSize));
+	}
+
+	/**
+	 * Creates a pool over the given, already configured, session managers.
+	 *
+	 * @param sessions the session managers to spread primitives over
+	 */
+	public PooledZkSessionManager(ZkSessionManager ... sessions) {
+		if(sessions == null || sessions.length == 0) {
+			throw new IllegalArgumentException("At least one session is required!");
+		}
+		this.sessions = sessions.clone();
+	}
+
+	private static ZkSessionManager[] createSessions(String connectionString, int timeout, int poolSize) {
+		if(poolSize <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+		}
+		ZkSessionManager[] sessions = new ZkSessionManager[poolSize];
+		for(int i=0; i<poolSize; i++) {
+			sessions[i] = new DefaultZkSessionManager(connectionString, timeout);
+		}
+		return sessions;
+	}
+
+	/**
+	 * Returns the session which owns everything created under the given node. The same node is always
+	 * mapped to the same session.
+	 *
+	 * @param node the base node of a primitive
+	 * @return the session manager to use for that node
+	 */
+	public ZkSessionManager getSessionManager(String node) {
+		int hash = node.hashCode();
+		hash ^= (hash >>> 16);
+		return sessions[(hash & Integer.MAX_VALUE) % sessions.length];
+	}
+
+	public int getPoolSize() {
+		return sessions.length;
+	}
+
+	@Override
+	public ZooKeeper getZooKeeper() {
+		return sessions[0].getZooKeeper();
+	}
+
+	@Override
+	public void syncIfStale() throws KeeperException, InterruptedException {
+		for(ZkSessionManager session : sessions) {
+			session.syncIfStale();
+		}
+	}
+
+	/**
+	 * @return the largest round-trip time estimate among the sessions, or -1 if none has one
+	 */
+	@Override
+	public long getRoundTripNanos() {
+		long roundTrip = -1;
+		for(ZkSessionManager session : sessions) {
+			roundTrip = Math.max(roundTrip, session.getRoundTripNanos());
+		}
+		return roundTrip;
+	}
+
+	@Override
+	public void shutdown() {
+		if(!shutdown.compareAndSet(false, true)) {
+			return;
+		}
+		RuntimeException failure = null;
+		for(ZkSessionManager session : sessions) {
+			try {
+				session.shutdown();
+			}catch(RuntimeException e) {
+				// keep closing the others
+				failure = e;
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public void addConnectionListener(ConnectionListener listener) {
+		for(ZkSessionManager session : sessions) {
+			session.addConnectionListener(listener);
+		}
+	}
+
+	@Override
+	public void removeConnectionListener(ConnectionListener listener) {
+		for(ZkSessionManager session : sessions) {
+			session.removeConnectionListener(listener);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.dw.zk;
+
+/**
+ * Description: Decides how long a {@link DefaultZkSessionManager} waits before making another attempt to
+ * establish a session, after attempts have failed.
+ * <p>
+ * There is never more than one attempt in flight per session manager: the threads asking for a session while
+ * an attempt is pending wait for its outcome, and while a delay is running they wait for the delay, rather
+ * than each connecting on its own. An attempt which replaces a session that was lost for other reasons than
+ * a failed attempt (closed or expired) is made right away.
+ * @author caohui
+ */
+public interface ReconnectPolicy {
+
+	/**
+	 * @param failedAttempts      the number of consecutive failed attempts so far, at least 1
+	 * @param previousDelayMillis the delay which preceded the last failed attempt, 0 if there was none
+	 * @return the time in milliseconds to wait before the next attempt
+	 */
+	long getDelayMillis(int failedAttempts, long previousDelayMillis);
+}
@@ -1,15 +1,24 @@
 package com.dw.zk;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
@@ -17,6 +26,7 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.dw.exception.ZkRuntimeException;
 import com.dw.util.LocalUtils;
 
 public class ReentrantZkLock extends ZkPrimitive implements Lock{
@@ -32,6 +42,38 @@ public class ReentrantZkLock extends ZkPrimitive implements Lock{
 	
 	protected final ThreadLocal<LockHolder> locks = new ThreadLocal<LockHolder> ();
 	
+	// delay before an asynchronous request which failed on connection loss is sent again
+	private static final long ASYNC_RETRY_DELAY_MILLIS = 500;
+	
+	// 本地合并模式下连续在本地线程间传递锁的默认上限
+	private static final int DEFAULT_MAX_LOCAL_HANDOFFS = 16;
+	
+	// JVM-local coalescing, see setLocalCoalescing(boolean)
+	private volatile boolean localCoalescing;
+	private volatile int maxLocalHandoffs = DEFAULT_MAX_LOCAL_HANDOFFS;
+	// the local threads take turns on this fair lock, and its holder is the one which owns the distributed lock
+	private final ReentrantLock localQueue = new ReentrantLock(true);
+	// the local threads waiting for localQueue
+	private final AtomicInteger localWaiters = new AtomicInteger();
+	// the node shared by the local threads, the session it was created on, and how many times it has been handed
+	// over; guarded by localQueue
+	private String sharedNode;
+	private long sharedSessionId;
+	private int handoffs;
+	
+	// 粘性租约模式下释放的锁节点数据
+	private static final byte[] LEASE_RELEASED = {'r', 'e', 'l', 'e', 'a', 's', 'e', 'd'};
+	
+	// sticky lease, see setStickyLease(boolean)
+	private volatile boolean stickyLease;
+	private final ReentrantLock leaseLock = new ReentrantLock();
+	// the node kept across unlocks and the client it was created with, whether it is held at the moment, and
+	// whether a change in the queue has ended the lease; guarded by leaseLock
+	private String leaseNode;
+	private ZooKeeper leaseZk;
+	private boolean leaseHeld;
+	private boolean leaseBroken;
+	
 	/**
 	 * Description: Constructs a new Lock on the specified node, using Open ACL privilegs.
 	 * All Rights Reserved.
@@ -48,13 +90,307 @@ public class ReentrantZkLock extends ZkPrimitive implements Lock{
 	public ReentrantZkLock(String baseNode, ZkSessionManager zkSessionManager, List<ACL> privilegs) {
 		super(baseNode, zkSessionManager, privilegs);
 	}
+	
+	/**
+	 * Description: Switches JVM-local coalescing on or off. In this mode only one thread of this lock object
+	 * competes for the lock in ZooKeeper at a time, while the other local threads queue on a fair local lock. When
+	 * the owner unlocks while local threads are waiting, the node is handed over to the longest waiting one,
+	 * without any round trip to ZooKeeper; after {@code maxLocalHandoffs} consecutive handoffs the node is deleted
+	 * anyway, so that other processes get their turn.
+	 * <p>
+	 * Locks are shared by their lock object: obtain a single instance per lock path (as ZkUtils does), so that
+	 * all the local threads coalesce. Must be set before the lock is used.
+	 * All Rights Reserved.
+	 *
+	 * @param localCoalescing
+	 */
+	public void setLocalCoalescing(boolean localCoalescing) {
+		this.localCoalescing = localCoalescing;
+	}
+	
+	public boolean isLocalCoalescing() {
+		return localCoalescing;
+	}
+	
+	/**
+	 * Description: Sets how many times in a row the node may be handed over between local threads in coalescing
+	 * mode, 16 by default.
+	 */
+	public void setMaxLocalHandoffs(int maxLocalHandoffs) {
+		if(maxLocalHandoffs < 0) {
+			throw new IllegalArgumentException("maxLocalHandoffs must not be negative: " + maxLocalHandoffs);
+		}
+		this.maxLocalHandoffs = maxLocalHandoffs;
+	}
+	
+	/**
+	 * Description: Switches the sticky lease mode on or off. In this mode the node is not deleted when the lock is
+	 * released, but marked released in its data, and a watch on the lock directory tells whether anybody else
+	 * has queued since. As long as nobody has, the next acquire by this lock object takes the node back without
+	 * any round trip to ZooKeeper. As soon as somebody queues, the lease ends: the node is deleted right away if
+	 * the lock is free, and on unlock otherwise.
+	 * <p>
+	 * Waiters elsewhere never treat a released node as free--they wait for it to be deleted--so the lease cannot
+	 * let two parties hold the lock. Must be set before the lock is used.
+	 * All Rights Reserved.
+	 *
+	 * @param stickyLease
+	 */
+	public void setStickyLease(boolean stickyLease) {
+		this.stickyLease = stickyLease;
+	}
+	
+	public boolean isStickyLease() {
+		return stickyLease;
+	}
+	
+	/**
+	 * Description: Acquires the lock without blocking, waiting as long as it takes. See lockAsync(long, TimeUnit).
+	 */
+	public CompletableFuture<LockHandle> lockAsync() {
+		return lockAsync(-1, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Description: Acquires the lock without blocking any thread: the node is queued, the queue listed and the
+	 * predecessor watched with asynchronous requests, and the returned future is completed by the callbacks and
+	 * the watch on the ZooKeeper event thread. Pending acquisitions cost no thread, however many there are.
+	 * <p>
+	 * The lock is held through the handle, from any thread, and is not reentrant: an asynchronous acquisition
+	 * queues behind the holder even if that is the calling thread, and bypasses JVM-local coalescing and sticky
+	 * leases. The future is completed on the event thread, so dependent stages which block must be run with one of
+	 * the {@code *Async} variants. Cancelling the future withdraws from the queue.
+	 * All Rights Reserved.
+	 *
+	 * @param timeout the maximum time to wait; negative to wait as long as it takes
+	 * @return the future handle of the lock, failed with a TimeoutException if the time runs out first, or with
+	 * the KeeperException which stopped the acquisition
+	 */
+	public CompletableFuture<LockHandle> lockAsync(long timeout, TimeUnit unit) {
+		final CompletableFuture<LockHandle> future = new CompletableFuture<LockHandle> ();
+		ZooKeeper zk;
+		try {
+			zk = zkSessionManager.getZooKeeper();
+		}catch(RuntimeException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		new AsyncAcquisition(zk, future).start();
+		if(timeout >= 0 && !future.isDone()) {
+			final ScheduledFuture<?> timer = ZkScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.completeExceptionally(new TimeoutException("Timed out waiting for lock " + baseNode));
+				}
+			}, timeout, unit);
+			future.whenComplete(new BiConsumer<LockHandle, Throwable>() {
+				@Override
+				public void accept(LockHandle handle, Throwable failure) {
+					timer.cancel(false);
+				}
+			});
+		}
+		return future;
+	}
+	
+	/*
+	 * One asynchronous acquisition. Everything but start() runs on the ZooKeeper event thread of the client the
+	 * node was created with, or on the scheduler when a request is sent again after a connection loss; stateLock
+	 * keeps them apart. The node is deleted whenever the future is completed without it, whichever comes first.
+	 */
+	private final class AsyncAcquisition implements Watcher {
+		private final ZooKeeper zk;
+		private final CompletableFuture<LockHandle> future;
+		private final ReentrantLock stateLock = new ReentrantLock();
+		// guarded by stateLock
+		private final LockQueueView queue = newQueueView();
+		private volatile String lockNode;
+		private String myNodeName;
+		
+		private AsyncAcquisition(ZooKeeper zk, CompletableFuture<LockHandle> future) {
+			this.zk = zk;
+			this.future = future;
+		}
+		
+		private void start() {
+			future.whenComplete(new BiConsumer<LockHandle, Throwable>() {
+				@Override
+				public void accept(LockHandle handle, Throwable failure) {
+					String node = lockNode;
+					if(failure != null && node != null) {
+						deleteNodeAsync(zk, node);
+					}
+				}
+			});
+			String adopted = claimResumedNode(zk);
+			if(adopted != null) {
+				created(adopted);
+				return;
+			}
+			zk.create(getBaseLockPath(), nodeData(), privileges, CreateMode.EPHEMERAL_SEQUENTIAL, new AsyncCallback.StringCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, String name) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						created(name);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		
+		private void created(String node) {
+			stateLock.lock();
+			try {
+				lockNode = node;
+				myNodeName = node.substring(node.lastIndexOf('/') + 1);
+			}finally {
+				stateLock.unlock();
+			}
+			if(future.isDone()) {
+				// cancelled or timed out while the node was being created
+				deleteNodeAsync(zk, node);
+				return;
+			}
+			list();
+		}
+		
+		private void list() {
+			zk.getChildren(baseNode, false, new AsyncCallback.ChildrenCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, List<String> children) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						stateLock.lock();
+						try {
+							queue.load(children, zk.getSessionId());
+							if(!queue.contains(myNodeName)) {
+								// our node is gone: the session which created it has expired
+								future.completeExceptionally(KeeperException.create(KeeperException.Code.NONODE, lockNode));
+								return;
+							}
+						}finally {
+							stateLock.unlock();
+						}
+						check();
+					}else if(!retry(rc, true)) {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		
+		// probes the predecessor, leaving this as its watch; holds the lock once there is none
+		private void check() {
+			if(future.isDone()) {
+				return;
+			}
+			final String predecessor;
+			stateLock.lock();
+			try {
+				predecessor = queue.predecessor(myNodeName);
+			}finally {
+				stateLock.unlock();
+			}
+			if(predecessor == null) {
+				// if the future has been failed meanwhile, the node has been deleted along with it
+				future.complete(new AsyncLockHandle(zk, lockNode));
+				return;
+			}
+			zk.exists(baseNode + "/" + predecessor, this, new AsyncCallback.StatCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, Stat stat) {
+					if(rc == KeeperException.Code.NONODE.intValue()) {
+						// nodes are only ever queued after ours, so the one before the gone node is our next predecessor
+						stateLock.lock();
+						try {
+							queue.remove(predecessor);
+						}finally {
+							stateLock.unlock();
+						}
+						check();
+					}else if(rc != KeeperException.Code.OK.intValue() && !retry(rc, false)) {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+					// otherwise the predecessor is there, and its watch will call us back
+				}
+			}, null);
+		}
+		
+		// sends a request again later if it failed on connection loss
+		private boolean retry(int rc, final boolean listing) {
+			if(rc != KeeperException.Code.CONNECTIONLOSS.intValue() && rc != KeeperException.Code.OPERATIONTIMEOUT.intValue()) {
+				return false;
+			}
+			ZkScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if(listing) {
+						list();
+					}else {
+						check();
+					}
+				}
+			}, ASYNC_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		
+		@Override
+		public void process(WatchedEvent event) {
+			if(event.getState() == Event.KeeperState.Expired) {
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.SESSIONEXPIRED, lockNode));
+			}else if(event.getType() == Event.EventType.NodeDeleted || event.getState() == Event.KeeperState.SyncConnected) {
+				check();
+			}
+		}
+	}
+	
+	// a lock acquired with lockAsync, released with an asynchronous delete
+	private static final class AsyncLockHandle implements LockHandle {
+		private final ZooKeeper zk;
+		private final String lockNode;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		
+		private AsyncLockHandle(ZooKeeper zk, String lockNode) {
+			this.zk = zk;
+			this.lockNode = lockNode;
+		}
+		
+		@Override
+		public List<String> getLockNodes() {
+			return Collections.singletonList(lockNode);
+		}
+		
+		/**
+		 * Description: Sends the delete of the node and returns without waiting for it: requests of the same
+		 * session sent afterwards are ordered after it.
+		 */
+		@Override
+		public void release() {
+			if(released.compareAndSet(false, true)) {
+				deleteNodeAsync(zk, lockNode);
+			}
+		}
+		
+		@Override
+		public void close() {
+			release();
+		}
+	}
+	
 	// Holder for information about a specific lock
 	static final class LockHolder {
 		private final String lockNode;
+		// whether the lock was acquired through the local queue
+		private final boolean coalesced;
 		private final AtomicInteger numLocks = new AtomicInteger(1);
 		
 		private LockHolder(String lockNode) {
+			this(lockNode, false);
+		}
+		
+		private LockHolder(String lockNode, boolean coalesced) {
 			this.lockNode = lockNode;
+			this.coalesced = coalesced;
 		}
 		
 		public void incrementLock() {
@@ -76,68 +412,461 @@ public class ReentrantZkLock extends ZkPrimitive implements Lock{
 		if(checkReentrancy()) {
 			return;
 		}
-		// set a connection listener to listener for session expiration
-		setConnectionListener();
+		try {
+			locks.set(acquire(-1, false));
+		}catch(InterruptedException e) {
+			// cannot happen: the wait is not interruptible
+			Thread.currentThread().interrupt();
+			throw new ZkRuntimeException(e);
+		}
+	}
+	
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if(checkReentrancy()) {
+			return;
+		}
+		locks.set(acquire(-1, true));
+	}
+
+	@Override
+	public boolean tryLock() {
+		if(checkReentrancy()) {
+			return true;
+		}
+		try {
+			LockHolder holder = acquire(0, false);
+			if(holder == null) {
+				return false;
+			}
+			locks.set(holder);
+			return true;
+		}catch(InterruptedException e) {
+			// cannot happen: there is no wait
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if(checkReentrancy()) {
+			return true;
+		}
+		LockHolder holder = acquire(Math.max(0, unit.toNanos(time)), true);
+		if(holder == null) {
+			return false;
+		}
+		locks.set(holder);
+		return true;
+	}
+
+	@Override
+	public void unlock() {
+		LockHolder holder = locks.get();
+		if(holder == null) {
+			throw new IllegalMonitorStateException("Attempting to unlock without first obtaining that lock on this thread");
+		}
+		if(holder.decrementLock() == 0) {
+			locks.remove();
+			if(holder.coalesced) {
+				releaseCoalesced(holder.lockNode());
+			}else {
+				relinquishNode(holder.lockNode());
+			}
+		}
+	}
+
+	/**
+	 * Description: Conditions are not supported by distributed locks.
+	 */
+	@Override
+	public Condition newCondition() {
+		throw new UnsupportedOperationException("Conditions are not supported by ReentrantZkLock");
+	}
+	
+	// see acquireNode for the arguments; returns null if the lock could not be acquired in time
+	private LockHolder acquire(long timeoutNanos, boolean interruptible) throws InterruptedException {
+		if(localCoalescing) {
+			String lockNode = acquireCoalesced(timeoutNanos, interruptible);
+			return lockNode == null ? null : new LockHolder(lockNode, true);
+		}
+		String lockNode = obtainNode(timeoutNanos, interruptible);
+		return lockNode == null ? null : new LockHolder(lockNode);
+	}
+	
+	/*
+	 * Takes a turn on the local queue, and then takes over the node handed over by the previous local owner, or
+	 * competes in ZooKeeper if there is none. The caller keeps holding localQueue while it owns the lock.
+	 */
+	private String acquireCoalesced(long timeoutNanos, boolean interruptible) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		boolean queued = false;
+		localWaiters.incrementAndGet();
+		try {
+			if(timeoutNanos < 0) {
+				if(interruptible) {
+					localQueue.lockInterruptibly();
+				}else {
+					localQueue.lock();
+				}
+				queued = true;
+			}else if(timeoutNanos == 0) {
+				queued = localQueue.tryLock();
+			}else {
+				queued = localQueue.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+			}
+		}finally {
+			localWaiters.decrementAndGet();
+			if(!queued) {
+				// we may have been the waiter a node was handed over to
+				releaseUnclaimedNode();
+			}
+		}
+		if(!queued) {
+			return null;
+		}
 		
-		String lockNode = null;
+		boolean acquired = false;
+		try {
+			// a node handed over on an expired session is gone: it must be queued again
+			if(sharedNode != null && zkSessionManager.getZooKeeper().getSessionId() != sharedSessionId) {
+				LOGGER.info("锁节点所在的session已经过期:{}", sharedNode);
+				sharedNode = null;
+			}
+			if(sharedNode == null) {
+				long remaining = timeoutNanos < 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+				String lockNode = obtainNode(remaining, interruptible);
+				if(lockNode == null) {
+					return null;
+				}
+				sharedNode = lockNode;
+				sharedSessionId = zkSessionManager.getZooKeeper().getSessionId();
+				handoffs = 0;
+			}
+			acquired = true;
+			return sharedNode;
+		}finally {
+			if(!acquired) {
+				localQueue.unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Called by the local owner: hands the node over to the next local thread if there is one and the handoff cap
+	 * has not been reached yet, and deletes it otherwise.
+	 */
+	private void releaseCoalesced(String lockNode) {
+		boolean handedOff = false;
 		try {
-			while(true) {
-				localLock.lock();
-				if(StringUtils.isEmpty(lockNode)) {
-					lockNode = createNode();
+			if(localWaiters.get() > 0 && handoffs < maxLocalHandoffs) {
+				handoffs++;
+				handedOff = true;
+			}else {
+				sharedNode = null;
+				relinquishNode(lockNode);
+			}
+		}finally {
+			localQueue.unlock();
+		}
+		if(handedOff) {
+			// the waiters may all have given up meanwhile
+			releaseUnclaimedNode();
+		}
+	}
+	
+	/*
+	 * Deletes a node which was handed over while nobody is left to take it. Both the owner which handed it over
+	 * and every waiter which gives up check this after leaving the queue, so that a node is never left behind.
+	 */
+	private void releaseUnclaimedNode() {
+		if(localWaiters.get() == 0 && localQueue.tryLock()) {
+			try {
+				if(sharedNode != null && localWaiters.get() == 0) {
+					String lockNode = sharedNode;
+					sharedNode = null;
+					relinquishNode(lockNode);
 				}
-				
-				try {
-					// ask ZooKeeper for the lock
-					boolean acquiredLock = tryAcquireDistributed(zkSessionManager.getZooKeeper(), lockNode, true);
-					if(!acquiredLock) {
-						// we don't have the lock, so we need to wait for our wathcer to fire
-						// this method is not interruptible, so need to wait appropriately
-						condition.awaitUninterruptibly();
+			}finally {
+				localQueue.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Description: Obtains a node holding the lock: takes back the leased node if there is one, and queues a new
+	 * node otherwise (see acquireNode).
+	 */
+	protected String obtainNode(long timeoutNanos, boolean interruptible) throws InterruptedException {
+		if(stickyLease) {
+			String lockNode = retakeLease();
+			if(lockNode != null) {
+				return lockNode;
+			}
+		}
+		String lockNode = acquireNode(timeoutNanos, interruptible);
+		if(lockNode != null && stickyLease) {
+			startLease(lockNode);
+		}
+		return lockNode;
+	}
+	
+	/**
+	 * Description: Gives up a node obtained with obtainNode: keeps it as a lease if nobody has queued behind it,
+	 * and deletes it otherwise.
+	 */
+	protected void relinquishNode(String lockNode) {
+		if(stickyLease) {
+			ZooKeeper zk = null;
+			leaseLock.lock();
+			try {
+				if(lockNode.equals(leaseNode) && leaseHeld) {
+					leaseHeld = false;
+					if(leaseBroken) {
+						leaseNode = null;
 					}else {
-						// we have the lock, so return happy
-						// 设置当前线程可重入当前锁
-						LockHolder holder = locks.get();
-						if(holder != null) {
-							holder.incrementLock();
+						zk = leaseZk;
+					}
+				}
+			}finally {
+				leaseLock.unlock();
+			}
+			if(zk != null) {
+				markLease(zk, lockNode, LEASE_RELEASED);
+				return;
+			}
+		}
+		releaseNode(lockNode);
+	}
+	
+	// takes the leased node back if nobody has queued since it was released: no round trip to ZooKeeper
+	private String retakeLease() {
+		String lockNode;
+		ZooKeeper zk;
+		leaseLock.lock();
+		try {
+			if(leaseNode == null || leaseHeld || leaseBroken || leaseZk.getState() != ZooKeeper.States.CONNECTED) {
+				return null;
+			}
+			leaseHeld = true;
+			lockNode = leaseNode;
+			zk = leaseZk;
+		}finally {
+			leaseLock.unlock();
+		}
+		markLease(zk, lockNode, nodeData());
+		return lockNode;
+	}
+	
+	// makes a node which was won in ZooKeeper the leased node, and watches the queue for newcomers
+	private void startLease(String lockNode) {
+		ZooKeeper zk = zkSessionManager.getZooKeeper();
+		leaseLock.lock();
+		try {
+			leaseNode = lockNode;
+			leaseZk = zk;
+			leaseHeld = true;
+			leaseBroken = false;
+		}finally {
+			leaseLock.unlock();
+		}
+		try {
+			// anybody queued behind us already ends the lease
+			if(zk.getChildren(baseNode, new LeaseWatcher(lockNode)).size() > 1) {
+				breakLease(lockNode);
+			}
+		}catch(KeeperException e) {
+			LOGGER.warn("无法监听锁目录，放弃锁租约:" + baseNode, e);
+			breakLease(lockNode);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			breakLease(lockNode);
+		}
+	}
+	
+	// ends the lease of the given node; a released node is deleted right away
+	private void breakLease(String lockNode) {
+		ZooKeeper zk;
+		leaseLock.lock();
+		try {
+			if(!lockNode.equals(leaseNode)) {
+				return;
+			}
+			leaseBroken = true;
+			if(leaseHeld) {
+				// deleted on unlock
+				return;
+			}
+			leaseNode = null;
+			zk = leaseZk;
+		}finally {
+			leaseLock.unlock();
+		}
+		deleteNodeAsync(zk, lockNode);
+	}
+	
+	// deletes a node of the given client, retrying on connection loss; never blocks, as it runs on the event thread
+	private static void deleteNodeAsync(final ZooKeeper zk, final String lockNode) {
+		zk.delete(lockNode, -1, new AsyncCallback.VoidCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx) {
+				if(rc == KeeperException.Code.CONNECTIONLOSS.intValue() || rc == KeeperException.Code.OPERATIONTIMEOUT.intValue()) {
+					// try again once reconnected; once the session has expired, the node is gone anyway
+					ZkScheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							if(zk.getState().isAlive()) {
+								deleteNodeAsync(zk, lockNode);
+							}
+						}
+					}, ASYNC_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+				}else if(rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+					LOGGER.warn("删除锁节点失败:{} {}", path, KeeperException.Code.get(rc));
+				}
+			}
+		}, null);
+	}
+	
+	// records in the node whether it is held, for anybody looking at the queue; fire and forget
+	private static void markLease(ZooKeeper zk, String lockNode, byte[] data) {
+		zk.setData(lockNode, data, -1, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				if(rc != KeeperException.Code.OK.intValue()) {
+					LOGGER.debug("更新锁租约节点失败:{} {}", path, KeeperException.Code.get(rc));
+				}
+			}
+		}, null);
+	}
+	
+	/*
+	 * Fires on the first change in the lock directory after the lease started, and on any change of the connection
+	 * state: either way, the lease can no longer tell whether anybody else is waiting.
+	 */
+	private final class LeaseWatcher implements Watcher {
+		private final String lockNode;
+		
+		private LeaseWatcher(String lockNode) {
+			this.lockNode = lockNode;
+		}
+		
+		@Override
+		public void process(WatchedEvent event) {
+			breakLease(lockNode);
+		}
+	}
+	
+	/**
+	 * Description: Queues a new lock node and waits until it holds the lock, without binding it to the calling
+	 * thread. On timeout, interruption or failure the node is deleted again.
+	 * All Rights Reserved.
+	 *
+	 * @param timeoutNanos the maximum time to wait; negative to wait as long as it takes, 0 not to wait at all
+	 * @param interruptible whether the wait can be interrupted
+	 * @return the lock node, now holding the lock; or null if the lock could not be acquired in time
+	 * @throws InterruptedException if interruptible and the calling thread was interrupted while waiting
+	 */
+	protected String acquireNode(long timeoutNanos, boolean interruptible) throws InterruptedException {
+		// set a connection listener to listener for session expiration
+		setConnectionListener();
+		String lockNode = null;
+		boolean acquired = false;
+		// the watch on our predecessor wakes this thread alone, not the others waiting on this lock
+		Waiter waiter = newWaiter();
+		try {
+			lockNode = createNode();
+			long deadline = System.nanoTime() + timeoutNanos;
+			// listed once, then kept current as our predecessors leave
+			LockQueueView queue = newQueueView();
+			localLock.lock();
+			try {
+				while(true) {
+					// ask ZooKeeper for the lock, leaving a watch on our predecessor unless we are not going to wait
+					if(tryAcquireDistributed(zkSessionManager.getZooKeeper(), lockNode, timeoutNanos != 0 ? waiter : null, queue)) {
+						acquired = true;
+						return lockNode;
+					}
+					if(timeoutNanos < 0) {
+						// we don't have the lock, so we need to wait for our watcher to fire
+						if(interruptible) {
+							waiter.getCondition().await();
 						}else {
-							locks.set(new LockHolder(lockNode));
+							waiter.getCondition().awaitUninterruptibly();
 						}
+						continue;
 					}
-				}finally {
-					localLock.unlock();
+					// another check costs a round trip to zk: give up if it could not complete before the deadline
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0 || remaining <= zkSessionManager.getRoundTripNanos()) {
+						return null;
+					}
+					waiter.getCondition().awaitNanos(remaining);
 				}
+			}finally {
+				localLock.unlock();
 			}
-		}catch(Exception e) {
+		}catch(KeeperException e) {
 			LOGGER.error(e.getMessage(), e);
-			if(!StringUtils.isEmpty(lockNode)) {
-				try {
-					ZkUtils.ensureDelete(zkSessionManager, lockNode, -1);
-				}catch(InterruptedException e1) {
-					LOGGER.error(e.getMessage(), e1);
-				}
-			}
-			throw new RuntimeException(e);
+			throw new ZkRuntimeException(e);
 		}finally {
+			removeWaiter(waiter);
+			if(!acquired && lockNode != null) {
+				releaseNode(lockNode);
+			}
 			// we no longer care about having a ConnectionListener here
 			removeConnectionListener();
 		}
 	}
 	
+	/**
+	 * Description: Deletes a lock node, releasing the lock (or the place in the queue) it stands for. The node is
+	 * deleted even if the calling thread has been interrupted, as the lock would stay held until the session ends
+	 * otherwise.
+	 */
+	protected void releaseNode(String lockNode) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			ZkUtils.ensureDelete(zkSessionManager, lockNode, -1);
+		}catch(InterruptedException e) {
+			// interrupted while retrying: leave the delete to the ZooKeeper event thread
+			interrupted = true;
+			new ZkAsyncClient(zkSessionManager).safeDelete(lockNode, -1);
+		}finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
 	protected boolean tryAcquireDistributed(ZooKeeper zk, String lockNode, boolean watch) throws KeeperException, InterruptedException {
-		List<String> tempLocks = ZkInternalUtils.filterByPrefix(zk.getChildren(baseNode, false), getLockPrefix());
-		ZkInternalUtils.sortBySequence(tempLocks, LOCKDELIMITER);
-		
-		String myNodeName = lockNode.substring(lockNode.lastIndexOf('/') + 1);
-		int myPos = tempLocks.indexOf(myNodeName);
-		
-		int nextNodePos = myPos - 1;
-		while(nextNodePos >= 0) {
+		return tryAcquireDistributed(zk, lockNode, watch ? signalWatcher : null, newQueueView());
+	}
+	
+	/**
+	 * Description: Checks whether the given lock node holds the lock, i.e. whether every node queued before it is
+	 * gone. The directory is only listed when the view has not been loaded on the current session yet; after
+	 * that, each check costs a single exists() on the immediate predecessor.
+	 * All Rights Reserved.
+	 *
+	 * @param watcher the watcher to leave on the predecessor, or null to leave none
+	 * @param queue the view of the queue, kept between the checks of one acquisition
+	 */
+	protected boolean tryAcquireDistributed(ZooKeeper zk, String lockNode, Watcher watcher, LockQueueView queue) throws KeeperException, InterruptedException {
+		String myNodeName = loadQueue(zk, lockNode, queue);
+		String predecessor;
+		while((predecessor = queue.predecessor(myNodeName)) != null) {
 			Stat stat = null;
-			if(watch) {
-				stat = zk.exists(baseNode + "/" + tempLocks.get(nextNodePos), signalWatcher);
+			if(watcher != null) {
+				stat = zk.exists(baseNode + "/" + predecessor, watcher);
 			}else {
-				stat = zk.exists(baseNode + "/" + tempLocks.get(nextNodePos), false);
+				stat = zk.exists(baseNode + "/" + predecessor, false);
 			}
 			
 			if(stat != null) {
@@ -145,20 +874,73 @@ public class ReentrantZkLock extends ZkPrimitive implements Lock{
 				return false;
 			}
 			
-			nextNodePos--;
+			// nodes are only ever queued after ours, so the one before the gone node is our next predecessor
+			queue.remove(predecessor);
 		}
 		
 		return true;
 	}
 	
+	// the view of the queue for one acquisition, covering every kind of node the lock node may have to wait for
+	LockQueueView newQueueView() {
+		return new LockQueueView(LOCKDELIMITER, getLockPrefix());
+	}
+	
+	/*
+	 * Lists the lock directory into the view unless it has been loaded on the current session already, and returns
+	 * the name of the lock node within the directory.
+	 */
+	String loadQueue(ZooKeeper zk, String lockNode, LockQueueView queue) throws KeeperException, InterruptedException {
+		String myNodeName = lockNode.substring(lockNode.lastIndexOf('/') + 1);
+		if(!queue.isLoadedFor(zk.getSessionId())) {
+			List<String> children = zk.getChildren(baseNode, false);
+			queue.load(children, zk.getSessionId());
+			if(!queue.contains(myNodeName)) {
+				// our node is gone: the session which created it has expired, so the lock cannot be acquired with it
+				throw KeeperException.create(KeeperException.Code.NONODE, lockNode);
+			}
+		}
+		return myNodeName;
+	}
+	
 	private String createNode() {
+		String adopted = claimResumedNode(zkSessionManager.getZooKeeper());
+		if(adopted != null) {
+			return adopted;
+		}
+		return ZkUtils.ensureCreate(zkSessionManager, getBaseLockPath(), nodeData(), privileges, CreateMode.EPHEMERAL_SEQUENTIAL);
+	}
+	
+	/*
+	 * A resumed session may still own a node its previous incarnation queued here: returns it, to take its place in
+	 * the queue, or null if there is none.
+	 */
+	private String claimResumedNode(ZooKeeper zk) {
+		ZkSessionFile sessionFile = ZkSessionFile.forSession(zk.getSessionId());
+		if(sessionFile != null) {
+			String adopted = sessionFile.claimResumedNode(baseNode, getLockPrefix() + LOCKDELIMITER);
+			if(adopted != null) {
+				LOGGER.info("接管重启前的锁节点:{}", adopted);
+				return adopted;
+			}
+			// recorded before creating the node, so that a crash right after the create still finds it
+			sessionFile.recordDirectory(baseNode);
+		}
+		return null;
+	}
+	
+	// the data of a lock node: the address of this host, if known
+	static byte[] nodeData() {
 		byte[] data = EMPTYNODE;
-		try {
-			data = DEFAULTVALUE.getBytes("utf-8");
-		}catch(UnsupportedEncodingException e) {
-			LOGGER.error("", e);
+		// 取不到本机地址时锁节点不带数据
+		if(DEFAULTVALUE != null) {
+			try {
+				data = DEFAULTVALUE.getBytes("utf-8");
+			}catch(UnsupportedEncodingException e) {
+				LOGGER.error("", e);
+			}
 		}
-		return ZkUtils.ensureCreate(ZkUtils.ZK_SESSION_MANAGER, getBaseLockPath(), data, privileges, CreateMode.EPHEMERAL_SEQUENTIAL);
+		return data;
 	}
 	
 	protected String getBaseLockPath() {
@@ -183,35 +965,4 @@ public class ReentrantZkLock extends ZkPrimitive implements Lock{
 		return false;
 	}
 
-	@Override
-	public void lockInterruptibly() throws InterruptedException {
-		// TODO Auto-generated method stub
-		
-	}
-
-	@Override
-	public boolean tryLock() {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public boolean tryLock(long time, TimeUnit unit)
-			throws InterruptedException {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public void unlock() {
-		// TODO Auto-generated method stub
-		
-	}
-
-	@Override
-	public Condition newCondition() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
 }
@@ -0,0 +1,197 @@
+package com.dw.zk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description: A distributed read-write lock. Readers and writers queue sequential nodes with the prefixes
+ * {@code read-} and {@code write-} in the same directory, so they are ordered by a single sequence: a reader
+ * waits only for the nearest writer queued before it, so that consecutive readers hold the lock together,
+ * while a writer waits for its immediate predecessor, whatever its kind.
+ * <p>
+ * Both locks are reentrant. A thread holding the write lock may acquire the read lock and then release the
+ * write lock, downgrading to a read lock without leaving the queue: the write node is then marked as a read
+ * node in its data, which readers queued behind it take as a reader. Upgrading from read to write is not
+ * possible, and blocks forever, as with {@link java.util.concurrent.locks.ReentrantReadWriteLock}.
+ * <p>
+ * Conditions, JVM-local coalescing and sticky leases are not supported by either lock, nor is asynchronous
+ * acquisition by the read lock.
+ * @author caohui
+ */
+public class ReentrantZkReadWriteLock implements ReadWriteLock {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReentrantZkReadWriteLock.class);
+
+	private static final String READPREFIX = "read";
+	private static final String WRITEPREFIX = "write";
+
+	// data of a write node whose owner has downgraded to a read lock
+	private static final byte[] DOWNGRADED = {'d', 'o', 'w', 'n', 'g', 'r', 'a', 'd', 'e', 'd'};
+
+	private final ReadLock readLock;
+	private final WriteLock writeLock;
+
+	/**
+	 * Description: Constructs a new read-write lock on the specified node, using Open ACL privileges.
+	 *
+	 * @param baseNode
+	 * @param zkSessionManager
+	 */
+	public ReentrantZkReadWriteLock(String baseNode, ZkSessionManager zkSessionManager) {
+		this(baseNode, zkSessionManager, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+	}
+
+	public ReentrantZkReadWriteLock(String baseNode, ZkSessionManager zkSessionManager, List<ACL> privileges) {
+		this.readLock = new ReadLock(baseNode, zkSessionManager, privileges);
+		this.writeLock = new WriteLock(baseNode, zkSessionManager, privileges);
+	}
+
+	@Override
+	public Lock readLock() {
+		return readLock;
+	}
+
+	@Override
+	public Lock writeLock() {
+		return writeLock;
+	}
+
+	private final class ReadLock extends ReentrantZkLock {
+
+		private ReadLock(String baseNode, ZkSessionManager zkSessionManager, List<ACL> privileges) {
+			super(baseNode, zkSessionManager, privileges);
+		}
+
+		@Override
+		protected String getLockPrefix() {
+			return READPREFIX;
+		}
+
+		@Override
+		LockQueueView newQueueView() {
+			return new LockQueueView(LOCKDELIMITER, READPREFIX, WRITEPREFIX);
+		}
+
+		@Override
+		protected String obtainNode(long timeoutNanos, boolean interruptible) throws InterruptedException {
+			// the writer of this thread excludes every other party already: its node stands for the read lock too
+			LockHolder write = writeLock.locks.get();
+			if(write != null) {
+				return write.lockNode();
+			}
+			return super.obtainNode(timeoutNanos, interruptible);
+		}
+
+		@Override
+		protected void relinquishNode(String lockNode) {
+			// a read lock taken inside the write lock is released along with it
+			LockHolder write = writeLock.locks.get();
+			if(write != null && write.lockNode().equals(lockNode)) {
+				return;
+			}
+			super.relinquishNode(lockNode);
+		}
+
+		/*
+		 * A reader holds the lock once every writer queued before it is gone (or has downgraded), whatever the
+		 * readers before it do. Reading the data of the nearest writer tells both whether it is still there and
+		 * whether it has downgraded, and leaves a watch which fires on either.
+		 */
+		@Override
+		protected boolean tryAcquireDistributed(ZooKeeper zk, String lockNode, Watcher watcher, LockQueueView queue) throws KeeperException, InterruptedException {
+			String myNodeName = loadQueue(zk, lockNode, queue);
+			String writer;
+			while((writer = queue.predecessor(myNodeName, WRITEPREFIX)) != null) {
+				try {
+					byte[] data = zk.getData(baseNode + "/" + writer, watcher, null);
+					if(!Arrays.equals(DOWNGRADED, data)) {
+						return false;
+					}
+				}catch(KeeperException.NoNodeException e) {
+					// the writer is gone
+				}
+				queue.remove(writer);
+			}
+			return true;
+		}
+
+		@Override
+		public void setLocalCoalescing(boolean localCoalescing) {
+			throw new UnsupportedOperationException("Local coalescing is not supported by read locks");
+		}
+
+		@Override
+		public void setStickyLease(boolean stickyLease) {
+			throw new UnsupportedOperationException("Sticky leases are not supported by read locks");
+		}
+
+		@Override
+		public CompletableFuture<LockHandle> lockAsync(long timeout, TimeUnit unit) {
+			throw new UnsupportedOperationException("Asynchronous acquisition is not supported by read locks");
+		}
+	}
+
+	private final class WriteLock extends ReentrantZkLock {
+
+		private WriteLock(String baseNode, ZkSessionManager zkSessionManager, List<ACL> privileges) {
+			super(baseNode, zkSessionManager, privileges);
+		}
+
+		@Override
+		protected String getLockPrefix() {
+			return WRITEPREFIX;
+		}
+
+		@Override
+		LockQueueView newQueueView() {
+			return new LockQueueView(LOCKDELIMITER, READPREFIX, WRITEPREFIX);
+		}
+
+		@Override
+		protected void relinquishNode(String lockNode) {
+			LockHolder read = readLock.locks.get();
+			if(read != null && read.lockNode().equals(lockNode)) {
+				downgrade(lockNode);
+				return;
+			}
+			super.relinquishNode(lockNode);
+		}
+
+		/*
+		 * Keeps the node for the read lock of this thread, marking it so that the readers behind it go ahead. If the
+		 * mark cannot be set, they simply keep waiting until the read lock is released.
+		 */
+		private void downgrade(String lockNode) {
+			try {
+				zkSessionManager.getZooKeeper().setData(lockNode, DOWNGRADED, -1);
+			}catch(KeeperException e) {
+				LOGGER.warn("写锁降级为读锁失败:" + lockNode, e);
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.warn("写锁降级为读锁被中断:{}", lockNode);
+			}
+		}
+
+		@Override
+		public void setLocalCoalescing(boolean localCoalescing) {
+			throw new UnsupportedOperationException("Local coalescing is not supported by write locks");
+		}
+
+		@Override
+		public void setStickyLease(boolean stickyLease) {
+			throw new UnsupportedOperationException("Sticky leases are not supported by write locks");
+		}
+	}
+}
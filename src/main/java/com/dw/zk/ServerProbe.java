@@ -0,0 +1,19 @@
+package com.dw.zk;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Description: Measures how far away a ZooKeeper server is, so that sessions can be established with the
+ * nearest servers of the ensemble (see {@link DefaultZkSessionManager#setServerProbe(ServerProbe)}).
+ * <p>
+ * Probes of the servers of an ensemble run concurrently, so implementations must be thread safe.
+ * @author caohui
+ */
+public interface ServerProbe {
+
+	/**
+	 * @param server the address of a server, as given in the connection string (not resolved yet)
+	 * @return the round-trip time to the server in nanoseconds, or a negative value if it is unreachable
+	 */
+	long probe(InetSocketAddress server);
+}
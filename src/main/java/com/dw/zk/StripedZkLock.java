@@ -0,0 +1,360 @@
+package com.dw.zk;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+import com.dw.exception.ZkRuntimeException;
+
+/**
+ * Description: Distributed locks for an unbounded set of keys (order ids and the like) on a fixed number of
+ * ZooKeeper lock nodes: every key is hashed onto one of {@code stripes} stripe directories, and locking the key
+ * across the cluster means holding its stripe. Keys of the same stripe therefore exclude each other between
+ * processes, but the number of persistent nodes (and of lock objects) stays bounded.
+ * <p>
+ * Within the JVM, every key has its own local lock, and a stripe is held on behalf of all the local threads
+ * which hold one of its keys: the first of them queues a node for the stripe, the others join the hold without
+ * any round trip, and the last one deletes the node. Local threads locking different keys of the same stripe
+ * thus do not block each other. So that a steady stream of local keys does not keep the stripe from other
+ * processes forever, after {@code maxLocalJoins} threads have joined a hold, new threads wait until the node
+ * has been deleted, and then queue a new one behind the other processes (see
+ * {@link ReentrantZkLock#setMaxLocalHandoffs(int)}). The local locks of the keys nobody holds or waits for are
+ * dropped, so that their map does not grow with the keys.
+ * <p>
+ * Keys are hashed with {@link String#hashCode()}, which is the same in every JVM; every party must use the
+ * same number of stripes.
+ * @author caohui
+ */
+public class StripedZkLock {
+
+	// 一个条带在本地线程间共享的默认上限
+	private static final int DEFAULT_MAX_LOCAL_JOINS = 16;
+
+	private final String baseNode;
+	private final ZkSessionManager zkSessionManager;
+	// the stripes, created on first use
+	private final AtomicReferenceArray<Stripe> stripes;
+	// guards the creation of the stripes, which is read without it
+	private final ReentrantLock stripesLock = new ReentrantLock();
+	// the local locks of the keys being held or waited for
+	private final ConcurrentHashMap<String, KeyLock> keyLocks = new ConcurrentHashMap<String, KeyLock> ();
+	private volatile int maxLocalJoins = DEFAULT_MAX_LOCAL_JOINS;
+
+	/**
+	 * @param baseNode the directory of the stripe nodes
+	 * @param zkSessionManager
+	 * @param stripes the number of stripes, the same for every party
+	 */
+	public StripedZkLock(String baseNode, ZkSessionManager zkSessionManager, int stripes) {
+		if(baseNode == null) {
+			throw new NullPointerException("No base node specified!");
+		}
+		if(stripes <= 0) {
+			throw new IllegalArgumentException("stripes must be positive: " + stripes);
+		}
+		this.baseNode = baseNode;
+		this.zkSessionManager = zkSessionManager;
+		this.stripes = new AtomicReferenceArray<Stripe> (stripes);
+	}
+
+	public int getStripes() {
+		return stripes.length();
+	}
+
+	/**
+	 * Description: Sets how many local threads may join the hold of a stripe, 16 by default. Once that many have,
+	 * the other local threads wait for the stripe to be released to the other processes; a thread already holding
+	 * a key of the stripe is always let in.
+	 */
+	public void setMaxLocalJoins(int maxLocalJoins) {
+		if(maxLocalJoins < 0) {
+			throw new IllegalArgumentException("maxLocalJoins must not be negative: " + maxLocalJoins);
+		}
+		this.maxLocalJoins = maxLocalJoins;
+	}
+
+	/**
+	 * Description: Returns the lock of the given key. The lock is reentrant and bound to the thread which
+	 * acquires it, like ReentrantZkLock, and does not support conditions.
+	 */
+	public Lock getLock(String key) {
+		if(key == null) {
+			throw new NullPointerException("No key specified!");
+		}
+		return new StripedLock(key);
+	}
+
+	/**
+	 * @return the stripe the key is hashed onto
+	 */
+	public int stripeOf(String key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % stripes.length();
+	}
+
+	private Stripe stripe(String key) {
+		int index = stripeOf(key);
+		Stripe stripe = stripes.get(index);
+		if(stripe == null) {
+			// 构造条带锁会访问zk，加锁保证每个条带只创建一次
+			stripesLock.lock();
+			try {
+				stripe = stripes.get(index);
+				if(stripe == null) {
+					stripe = new Stripe(baseNode + "/" + index);
+					stripes.set(index, stripe);
+				}
+			}finally {
+				stripesLock.unlock();
+			}
+		}
+		return stripe;
+	}
+
+	// takes a reference to the local lock of the key, creating it if nobody holds one
+	private KeyLock retainKeyLock(String key) {
+		return keyLocks.compute(key, new BiFunction<String, KeyLock, KeyLock>() {
+			@Override
+			public KeyLock apply(String key, KeyLock keyLock) {
+				KeyLock retained = keyLock == null ? new KeyLock() : keyLock;
+				retained.references++;
+				return retained;
+			}
+		});
+	}
+
+	// drops a reference taken with retainKeyLock, removing the local lock once nobody refers to it
+	private void releaseKeyLock(String key) {
+		keyLocks.computeIfPresent(key, new BiFunction<String, KeyLock, KeyLock>() {
+			@Override
+			public KeyLock apply(String key, KeyLock keyLock) {
+				return --keyLock.references == 0 ? null : keyLock;
+			}
+		});
+	}
+
+	// the local lock of a key, with the number of threads holding or waiting for it (guarded by the map)
+	private static final class KeyLock extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		private int references;
+
+		private KeyLock() {
+			super(true);
+		}
+	}
+
+	/*
+	 * A stripe, held in ZooKeeper on behalf of all the local threads holding one of its keys. holdLock is held
+	 * while the node is queued, so that the local threads arriving meanwhile wait for it instead of queueing
+	 * nodes of their own. Once maxLocalJoins threads have joined the hold, the others wait on released.
+	 */
+	private final class Stripe {
+		private final ReentrantZkLock zkLock;
+		private final ReentrantLock holdLock = new ReentrantLock(true);
+		private final Condition released = holdLock.newCondition();
+		// the keys of the stripe the current thread holds
+		private final ThreadLocal<int[]> heldKeys = new ThreadLocal<int[]> () {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+		// guarded by holdLock
+		private String lockNode;
+		private int holders;
+		// the threads which have joined the hold since the node was queued
+		private int joins;
+
+		private Stripe(String node) {
+			this.zkLock = new ReentrantZkLock(node, zkSessionManager);
+		}
+
+		// see ReentrantZkLock#acquireNode for the arguments
+		private boolean hold(long timeoutNanos, boolean interruptible) throws InterruptedException {
+			long deadline = System.nanoTime() + timeoutNanos;
+			if(!lock(holdLock, timeoutNanos, interruptible)) {
+				return false;
+			}
+			try {
+				int[] held = heldKeys.get();
+				if(held[0] > 0) {
+					// another key of the stripe is held by this thread already: it cannot wait for the release
+					holders++;
+					held[0]++;
+					return true;
+				}
+				// the hold has been shared enough: wait for the node to go, and queue a new one
+				while(holders > 0 && joins >= maxLocalJoins) {
+					if(timeoutNanos < 0) {
+						if(interruptible) {
+							released.await();
+						}else {
+							released.awaitUninterruptibly();
+						}
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						return false;
+					}
+					released.awaitNanos(remaining);
+				}
+				if(holders == 0) {
+					long remaining = timeoutNanos < 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+					lockNode = zkLock.acquireNode(remaining, interruptible);
+					if(lockNode == null) {
+						return false;
+					}
+					joins = 0;
+				}else {
+					joins++;
+				}
+				holders++;
+				held[0]++;
+				return true;
+			}finally {
+				holdLock.unlock();
+			}
+		}
+
+		private void release() {
+			holdLock.lock();
+			try {
+				heldKeys.get()[0]--;
+				if(--holders == 0) {
+					String node = lockNode;
+					lockNode = null;
+					zkLock.releaseNode(node);
+					released.signalAll();
+				}
+			}finally {
+				holdLock.unlock();
+			}
+		}
+	}
+
+	// locks a local lock; the timeout is negative to wait as long as it takes, 0 not to wait at all
+	private static boolean lock(Lock lock, long timeoutNanos, boolean interruptible) throws InterruptedException {
+		if(timeoutNanos < 0) {
+			if(interruptible) {
+				lock.lockInterruptibly();
+			}else {
+				lock.lock();
+			}
+			return true;
+		}
+		if(timeoutNanos == 0) {
+			return lock.tryLock();
+		}
+		return lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private final class StripedLock implements Lock {
+		private final String key;
+
+		private StripedLock(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void lock() {
+			try {
+				acquire(-1, false);
+			}catch(InterruptedException e) {
+				// cannot happen: the wait is not interruptible
+				Thread.currentThread().interrupt();
+				throw new ZkRuntimeException(e);
+			}
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			acquire(-1, true);
+		}
+
+		@Override
+		public boolean tryLock() {
+			try {
+				return acquire(0, false);
+			}catch(InterruptedException e) {
+				// cannot happen: there is no wait
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			return acquire(Math.max(0, unit.toNanos(time)), true);
+		}
+
+		/*
+		 * Takes the local lock of the key, and then joins the hold of its stripe unless the thread is re-entering
+		 * the key. The local lock stays referenced for as long as it is held.
+		 */
+		private boolean acquire(long timeoutNanos, boolean interruptible) throws InterruptedException {
+			long deadline = System.nanoTime() + timeoutNanos;
+			KeyLock keyLock = retainKeyLock(key);
+			boolean acquired = false;
+			try {
+				if(!StripedZkLock.lock(keyLock, timeoutNanos, interruptible)) {
+					return false;
+				}
+				try {
+					if(keyLock.getHoldCount() == 1) {
+						long remaining = timeoutNanos < 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+						if(!stripe(key).hold(remaining, interruptible)) {
+							return false;
+						}
+					}
+					acquired = true;
+					return true;
+				}finally {
+					if(!acquired) {
+						keyLock.unlock();
+					}
+				}
+			}finally {
+				if(!acquired) {
+					releaseKeyLock(key);
+				}
+			}
+		}
+
+		@Override
+		public void unlock() {
+			KeyLock keyLock = keyLocks.get(key);
+			if(keyLock == null || !keyLock.isHeldByCurrentThread()) {
+				throw new IllegalMonitorStateException("Attempting to unlock without first obtaining that lock on this thread");
+			}
+			try {
+				if(keyLock.getHoldCount() == 1) {
+					stripe(key).release();
+				}
+			}finally {
+				keyLock.unlock();
+				releaseKeyLock(key);
+			}
+		}
+
+		/**
+		 * Description: Conditions are not supported by distributed locks.
+		 */
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException("Conditions are not supported by StripedZkLock");
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.dw.zk;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Description: Measures the round-trip time to a server as the time it takes to open a TCP connection to it,
+ * which costs one round trip and does not involve ZooKeeper itself.
+ * @author caohui
+ */
+public class TcpConnectProbe implements ServerProbe {
+
+	private final int timeoutMillis;
+
+	/**
+	 * @param timeoutMillis the time after which a server which did not accept the connection is unreachable
+	 */
+	public TcpConnectProbe(int timeoutMillis) {
+		if(timeoutMillis <= 0) {
+			throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+		}
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public long probe(InetSocketAddress server) {
+		InetSocketAddress address = server;
+		if(address.isUnresolved()) {
+			address = new InetSocketAddress(server.getHostString(), server.getPort());
+			if(address.isUnresolved()) {
+				return -1;
+			}
+		}
+		Socket socket = new Socket();
+		try {
+			long start = System.nanoTime();
+			socket.connect(address, timeoutMillis);
+			return System.nanoTime() - start;
+		}catch(IOException e) {
+			return -1;
+		}finally {
+			try {
+				socket.close();
+			}catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+}
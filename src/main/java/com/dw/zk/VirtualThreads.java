@@ -0,0 +1,84 @@
+package com.dw.zk;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description: Access to the virtual threads of Java 21+, through reflection so that this project still
+ * builds and runs on older JVMs.
+ * <p>
+ * The virtual-thread mode is switched on with the system property {@value #PROPERTY}{@code =true}: the
+ * default connection listener executors then run every call on a virtual thread of its own. Lock waiters
+ * need nothing more: the locks of this project park on {@code java.util.concurrent} conditions, which
+ * release the carrier thread of a waiting virtual thread.
+ * @author caohui
+ */
+final class VirtualThreads {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+	static final String PROPERTY = "zk.virtualThreads";
+
+	private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+	private static final Method NAME = method(builderClass(), "name", String.class, long.class);
+	private static final Method FACTORY = method(builderClass(), "factory");
+	private static final Method THREAD_PER_TASK = method(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private VirtualThreads() {}
+
+	/**
+	 * Description: Whether this JVM has virtual threads.
+	 */
+	static boolean isSupported() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && THREAD_PER_TASK != null;
+	}
+
+	/**
+	 * Description: Whether the virtual-thread mode is switched on, and supported.
+	 */
+	static boolean isEnabled() {
+		return Boolean.getBoolean(PROPERTY) && isSupported();
+	}
+
+	/**
+	 * Description: Returns an executor starting a new virtual thread, named with the prefix and a counter, for
+	 * every task; or null if this JVM has no virtual threads.
+	 */
+	static ExecutorService newExecutor(String namePrefix) {
+		if(!isSupported()) {
+			return null;
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+			return (ExecutorService) THREAD_PER_TASK.invoke(null, factory);
+		}catch(Exception e) {
+			LOGGER.warn("无法创建虚拟线程的executor", e);
+			return null;
+		}
+	}
+
+	private static Class<?> builderClass() {
+		try {
+			return Class.forName("java.lang.Thread$Builder");
+		}catch(ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static Method method(Class<?> type, String name, Class<?> ... parameterTypes) {
+		if(type == null) {
+			return null;
+		}
+		try {
+			return type.getMethod(name, parameterTypes);
+		}catch(NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.dw.zk;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Description: Non-blocking access to ZooKeeper through the session manager.
+ * <p>
+ * Every operation is sent with the {@link AsyncCallback} API of the ZooKeeper returned by
+ * {@link ZkSessionManager#getZooKeeper()} and returns immediately with a {@link CompletableFuture}, so a
+ * single thread can keep many requests in flight. Futures are completed on the ZooKeeper event thread:
+ * dependent stages which block should be run with one of the {@code *Async} variants.
+ * <p>
+ * Failures are reported by completing the future exceptionally with the matching {@link KeeperException}.
+ * The {@code safe*} operations keep the semantics of their {@link ZkInternalUtils} counterparts.
+ * @author caohui
+ */
+public final class ZkAsyncClient {
+
+	private final ZkSessionManager zkSessionManager;
+
+	public ZkAsyncClient(ZkSessionManager zkSessionManager) {
+		if(zkSessionManager == null) {
+			throw new NullPointerException("No session manager specified!");
+		}
+		this.zkSessionManager = zkSessionManager;
+	}
+
+	public ZkSessionManager getSessionManager() {
+		return zkSessionManager;
+	}
+
+	public CompletableFuture<String> create(String path, byte[] data, List<ACL> privileges, CreateMode createMode) {
+		final CompletableFuture<String> future = new CompletableFuture<String> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.create(path, data, privileges, createMode, new AsyncCallback.StringCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, String name) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(name);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/**
+	 * Description: Creates a new node, treating an already existing node as success (see
+	 * {@link ZkInternalUtils#safeCreate}).
+	 *
+	 * @return the name of the created node, or {@code nodeToCreate} if it already existed
+	 */
+	public CompletableFuture<String> safeCreate(final String nodeToCreate, byte[] data, List<ACL> privileges, CreateMode createMode) {
+		final CompletableFuture<String> future = new CompletableFuture<String> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.create(nodeToCreate, data, privileges, createMode, new AsyncCallback.StringCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, String name) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(name);
+					}else if(rc == KeeperException.Code.NODEEXISTS.intValue()) {
+						// if the node has already been created, don't worry about it
+						future.complete(nodeToCreate);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	public CompletableFuture<Void> delete(String path, int version) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.delete(path, version, new AsyncCallback.VoidCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(null);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/**
+	 * Description: Deletes a node, treating an already deleted node as success (see
+	 * {@link ZkInternalUtils#safeDelete}).
+	 *
+	 * @return true if this call deleted the node, false if it did not exist
+	 */
+	public CompletableFuture<Boolean> safeDelete(String nodeToDelete, int version) {
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.delete(nodeToDelete, version, new AsyncCallback.VoidCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(Boolean.TRUE);
+					}else if(rc == KeeperException.Code.NONODE.intValue()) {
+						// if the node has already been deleted, don't worry about it
+						future.complete(Boolean.FALSE);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/**
+	 * @param watcher the watcher to leave on the node, or null for none
+	 * @return the stat of the node, or null if it does not exist
+	 */
+	public CompletableFuture<Stat> exists(String path, Watcher watcher) {
+		final CompletableFuture<Stat> future = new CompletableFuture<Stat> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.exists(path, watcher, new AsyncCallback.StatCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, Stat stat) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(stat);
+					}else if(rc == KeeperException.Code.NONODE.intValue()) {
+						future.complete(null);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/**
+	 * @param watcher the watcher to leave on the node, or null for none
+	 */
+	public CompletableFuture<byte[]> getData(String path, Watcher watcher) {
+		return getData(path, watcher, false);
+	}
+
+	/**
+	 * Description: Reads the data of a node, returning an empty array if it does not exist (see
+	 * {@link ZkInternalUtils#safeGetData}).
+	 */
+	public CompletableFuture<byte[]> safeGetData(String path, Watcher watcher) {
+		return getData(path, watcher, true);
+	}
+
+	private CompletableFuture<byte[]> getData(String path, Watcher watcher, final boolean safe) {
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.getData(path, watcher, new AsyncCallback.DataCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(data);
+					}else if(safe && rc == KeeperException.Code.NONODE.intValue()) {
+						future.complete(new byte[]{});
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	public CompletableFuture<Stat> setData(String path, byte[] data, int version) {
+		final CompletableFuture<Stat> future = new CompletableFuture<Stat> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.setData(path, data, version, new AsyncCallback.StatCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, Stat stat) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(stat);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/**
+	 * @param watcher the watcher to leave on the node, or null for none
+	 */
+	public CompletableFuture<List<String>> getChildren(String path, Watcher watcher) {
+		final CompletableFuture<List<String>> future = new CompletableFuture<List<String>> ();
+		ZooKeeper zk = zooKeeper(future);
+		if(zk != null) {
+			zk.getChildren(path, watcher, new AsyncCallback.ChildrenCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx, List<String> children) {
+					if(rc == KeeperException.Code.OK.intValue()) {
+						future.complete(children);
+					}else {
+						future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+					}
+				}
+			}, null);
+		}
+		return future;
+	}
+
+	/*
+	 * Fetches the ZooKeeper to send a request with. If the session manager cannot provide one,
+	 * the future is failed with the cause and null is returned.
+	 */
+	private ZooKeeper zooKeeper(CompletableFuture<?> future) {
+		try {
+			return zkSessionManager.getZooKeeper();
+		}catch(RuntimeException e) {
+			future.completeExceptionally(e);
+			return null;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package com.dw.zk;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,9 +43,12 @@ public class ZkPrimitive {
 	
 	// A signalling wathcer, whose job it is to call (java.util.concurrent.locks.Condition#signal() or
 	// java.util.concurrent.locks.Condition#signalAll()) to notify any threads sleeping through the
-	// local instance.
+	// local instance. It wakes every waiter: a Waiter wakes only the thread waiting on it.
 	protected final Watcher signalWatcher;
 	
+	// the waiters of this primitive, see newWaiter(); guarded by localLock
+	private final Set<Waiter> waiters = new HashSet<Waiter> ();
+	
 	/**
 	 * Description: Creates a new ZkPrimitive with the correct node information.
 	 * All Rights Reserved.
@@ -60,7 +65,13 @@ public class ZkPrimitive {
 		}
 		
 		this.baseNode = baseNode;
-		this.zkSessionManager = zkSessionmanager;
+		// a pooled manager hands every primitive its own session, so that all of its nodes and watches stay on it
+		ZkSessionManager shared = ZkSessionRegistry.unwrap(zkSessionmanager);
+		if(shared instanceof PooledZkSessionManager) {
+			this.zkSessionManager = ((PooledZkSessionManager) shared).getSessionManager(baseNode);
+		}else {
+			this.zkSessionManager = zkSessionmanager;
+		}
 		this.privileges = privileges;
 		
 		this.localLock = new ReentrantLock(true);
@@ -128,10 +139,78 @@ public class ZkPrimitive {
 		localLock.lock();
 		try {
 			condition.signalAll();
+			for(Waiter waiter : waiters) {
+				waiter.signal();
+			}
 		}finally {
 			localLock.unlock();
 		}
 	}
+	
+	/**
+	 * Description: Creates the wake-up target of one waiting thread. The waiter is the watcher to leave on the node
+	 * the thread waits for, so that a change of that node wakes that thread alone, instead of every thread waiting
+	 * on this primitive; connection events still wake them all (see notifyParties). Must be removed with
+	 * removeWaiter once the wait is over.
+	 * All Rights Reserved.
+	 *
+	 * @return Waiter
+	 */
+	protected Waiter newWaiter() {
+		Waiter waiter = new Waiter();
+		localLock.lock();
+		try {
+			waiters.add(waiter);
+		}finally {
+			localLock.unlock();
+		}
+		return waiter;
+	}
+	
+	protected void removeWaiter(Waiter waiter) {
+		localLock.lock();
+		try {
+			waiters.remove(waiter);
+		}finally {
+			localLock.unlock();
+		}
+	}
+	
+	/**
+	 * Description: The wake-up target of one waiting thread: a watcher which signals its own condition of localLock.
+	 * The number of signals so far lets a thread which does not hold localLock between checking and waiting tell
+	 * whether it has been signalled meanwhile.
+	 */
+	protected final class Waiter implements Watcher {
+		private final Condition signalled = localLock.newCondition();
+		private volatile long signals;
+		
+		private Waiter() {}
+		
+		// the condition to await, holding localLock
+		public Condition getCondition() {
+			return signalled;
+		}
+		
+		public long getSignals() {
+			return signals;
+		}
+		
+		@Override
+		public void process(WatchedEvent event) {
+			signal();
+		}
+		
+		private void signal() {
+			localLock.lock();
+			try {
+				signals++;
+				signalled.signal();
+			}finally {
+				localLock.unlock();
+			}
+		}
+	}
 	private static final class PrimitiveConnectionListener extends ConnectionListenerSkeleton {
 		private final ZkPrimitive primitive;
 		
@@ -0,0 +1,50 @@
+package com.dw.zk;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description: The scheduler shared by all session managers of this JVM for their periodic and delayed
+ * housekeeping tasks.
+ * <p>
+ * The underlying thread is only started when the first task is scheduled, and is a daemon thread so
+ * that it never keeps the JVM alive. Tasks must be short and non-blocking, since they all share it.
+ * @author caohui
+ */
+final class ZkScheduler {
+
+	private ZkScheduler() {}
+
+	// lazily started on first use, see Holder
+	private static final class Holder {
+		private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+	}
+
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable);
+				t.setName("zk-scheduler-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// cancelled tasks must not pile up in the queue until their delay runs out
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return Holder.SCHEDULER.schedule(task, delay, unit);
+	}
+
+	static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+		return Holder.SCHEDULER.scheduleWithFixedDelay(task, initialDelay, delay, unit);
+	}
+}
@@ -0,0 +1,390 @@
+package com.dw.zk;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dw.exception.ZkRuntimeException;
+
+/**
+ * Description: A distributed counting semaphore, capping how many permits the whole cluster holds at a time.
+ * <p>
+ * Every acquisition queues a single sequential node, named {@code permit-<n>-<sequence>} after the number of
+ * permits it asks for, so that acquiring several permits costs the same single create as acquiring one, and
+ * a listing of the directory tells how many permits every node stands for. The queue is fair: an acquisition
+ * holds its permits once the permits of all the nodes up to and including its own fit in the total, whether
+ * the nodes before it hold their permits or still wait for them.
+ * <p>
+ * A waiter watches the nodes queued before it and counts down the permits they free as they leave, which they
+ * only ever do: its thread is only woken once enough permits have been freed for it, not on every release.
+ * <p>
+ * The number of permits is not stored in ZooKeeper: every party must construct the semaphore with the same
+ * number. Permits are not owned by threads, but {@link #release(int)} must match the number of permits of an
+ * earlier acquisition through the same semaphore object.
+ * @author caohui
+ */
+public class ZkSemaphore extends ZkPrimitive {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZkSemaphore.class);
+
+	private static final String PERMITPREFIX = "permit";
+	private static final char DELIMITER = '-';
+	// how long to wait before listing the queue again after a connection loss
+	private static final long RETRY_DELAY_MILLIS = 100;
+
+	private final int permits;
+	// the nodes held through this object, by their number of permits
+	private final ConcurrentHashMap<Integer, Queue<String>> held = new ConcurrentHashMap<Integer, Queue<String>> ();
+
+	/**
+	 * Description: Constructs a new semaphore on the specified node, using Open ACL privileges.
+	 *
+	 * @param baseNode
+	 * @param zkSessionManager
+	 * @param permits the total number of permits, the same for every party
+	 */
+	public ZkSemaphore(String baseNode, ZkSessionManager zkSessionManager, int permits) {
+		this(baseNode, zkSessionManager, permits, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+	}
+
+	public ZkSemaphore(String baseNode, ZkSessionManager zkSessionManager, int permits, List<ACL> privileges) {
+		super(baseNode, zkSessionManager, privileges);
+		if(permits <= 0) {
+			throw new IllegalArgumentException("permits must be positive: " + permits);
+		}
+		this.permits = permits;
+	}
+
+	public int getPermits() {
+		return permits;
+	}
+
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/**
+	 * Description: Acquires the given number of permits, waiting as long as it takes.
+	 *
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public void acquire(int n) throws InterruptedException {
+		checkPermits(n);
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		acquireNode(n, -1);
+	}
+
+	public boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+
+	/**
+	 * Description: Acquires the given number of permits if they are available right away.
+	 */
+	public boolean tryAcquire(int n) {
+		checkPermits(n);
+		try {
+			return acquireNode(n, 0);
+		}catch(InterruptedException e) {
+			// cannot happen: there is no wait
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		return tryAcquire(1, timeout, unit);
+	}
+
+	/**
+	 * Description: Acquires the given number of permits, waiting at most the given time for them.
+	 *
+	 * @return true if the permits were acquired, false if the time ran out first
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public boolean tryAcquire(int n, long timeout, TimeUnit unit) throws InterruptedException {
+		checkPermits(n);
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		return acquireNode(n, Math.max(0, unit.toNanos(timeout)));
+	}
+
+	public void release() {
+		release(1);
+	}
+
+	/**
+	 * Description: Releases permits acquired earlier through this semaphore object, in a single acquisition of
+	 * exactly {@code n} permits.
+	 *
+	 * @throws IllegalStateException if no such acquisition is held
+	 */
+	public void release(int n) {
+		Queue<String> nodes = held.get(n);
+		String permitNode = nodes == null ? null : nodes.poll();
+		if(permitNode == null) {
+			throw new IllegalStateException("No acquisition of " + n + " permits is held by this semaphore");
+		}
+		deleteNode(permitNode);
+	}
+
+	/**
+	 * Description: Returns the number of permits neither held nor waited for across the cluster. The value may be
+	 * outdated as soon as it is returned.
+	 */
+	public int availablePermits() {
+		try {
+			int queued = 0;
+			for(String child : zkSessionManager.getZooKeeper().getChildren(baseNode, false)) {
+				if(child.startsWith(PERMITPREFIX)) {
+					queued += parsePermits(child);
+				}
+			}
+			return Math.max(0, permits - queued);
+		}catch(KeeperException e) {
+			throw new ZkRuntimeException(e);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ZkRuntimeException(e);
+		}
+	}
+
+	private void checkPermits(int n) {
+		if(n <= 0 || n > permits) {
+			throw new IllegalArgumentException("Cannot acquire " + n + " of " + permits + " permits");
+		}
+	}
+
+	/*
+	 * Queues a node for n permits and waits until it holds them; the wait is interruptible unless there is none.
+	 * On timeout, interruption or failure the node is deleted again.
+	 */
+	private boolean acquireNode(int n, long timeoutNanos) throws InterruptedException {
+		String permitNode = null;
+		boolean acquired = false;
+		try {
+			permitNode = createNode(n);
+			String myNodeName = permitNode.substring(permitNode.lastIndexOf('/') + 1);
+			long deadline = System.nanoTime() + timeoutNanos;
+			while(true) {
+				ZooKeeper zk = zkSessionManager.getZooKeeper();
+				List<String> ahead;
+				try {
+					ahead = nodesAhead(zk, permitNode, myNodeName);
+				}catch(KeeperException.ConnectionLossException e) {
+					// a lost wait is listed again right away, possibly before the client has reconnected
+					if(timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+						break;
+					}
+					Thread.sleep(RETRY_DELAY_MILLIS);
+					continue;
+				}
+				int queued = n;
+				for(String node : ahead) {
+					queued += parsePermits(node);
+				}
+				if(queued <= permits || timeoutNanos == 0) {
+					acquired = queued <= permits;
+					break;
+				}
+				long remaining = deadline - System.nanoTime();
+				if(timeoutNanos > 0 && remaining <= 0) {
+					break;
+				}
+				PermitWait wait = new PermitWait(queued - permits);
+				for(String node : ahead) {
+					zk.getData(baseNode + "/" + node, wait, wait, parsePermits(node));
+				}
+				Boolean satisfied = wait.await(timeoutNanos < 0, remaining);
+				if(satisfied == null) {
+					// the connection changed while waiting, and a watch may be missing: list the queue again
+					continue;
+				}
+				acquired = satisfied;
+				break;
+			}
+		}catch(KeeperException e) {
+			LOGGER.error(e.getMessage(), e);
+			throw new ZkRuntimeException(e);
+		}finally {
+			if(!acquired && permitNode != null) {
+				deleteNode(permitNode);
+			}
+		}
+		if(acquired) {
+			Queue<String> nodes = held.get(n);
+			if(nodes == null) {
+				Queue<String> created = new ConcurrentLinkedQueue<String> ();
+				nodes = held.putIfAbsent(n, created);
+				if(nodes == null) {
+					nodes = created;
+				}
+			}
+			nodes.add(permitNode);
+		}
+		return acquired;
+	}
+
+	private String createNode(int n) {
+		String prefix = PERMITPREFIX + DELIMITER + n + DELIMITER;
+		ZkSessionFile sessionFile = ZkSessionFile.forSession(zkSessionManager.getZooKeeper().getSessionId());
+		if(sessionFile != null) {
+			// a resumed session may still own a node for as many permits, queued by its previous incarnation
+			String adopted = sessionFile.claimResumedNode(baseNode, prefix);
+			if(adopted != null) {
+				LOGGER.info("接管重启前的许可节点:{}", adopted);
+				return adopted;
+			}
+			// recorded before creating the node, so that a crash right after the create still finds it
+			sessionFile.recordDirectory(baseNode);
+		}
+		return ZkUtils.ensureCreate(zkSessionManager, baseNode + "/" + prefix, EMPTYNODE, privileges, CreateMode.EPHEMERAL_SEQUENTIAL);
+	}
+
+	// the names of the permit nodes queued before ours
+	private List<String> nodesAhead(ZooKeeper zk, String permitNode, String myNodeName) throws KeeperException, InterruptedException {
+		List<String> ahead = new ArrayList<String> ();
+		int mySequence = ZkInternalUtils.parseSequenceNumber(myNodeName, DELIMITER);
+		boolean found = false;
+		for(String child : zk.getChildren(baseNode, false)) {
+			if(!child.startsWith(PERMITPREFIX)) {
+				continue;
+			}
+			if(child.equals(myNodeName)) {
+				found = true;
+			}else if(ZkInternalUtils.parseSequenceNumber(child, DELIMITER) < mySequence) {
+				ahead.add(child);
+			}
+		}
+		if(!found) {
+			// our node is gone: the session which created it has expired
+			throw KeeperException.create(KeeperException.Code.NONODE, permitNode);
+		}
+		return ahead;
+	}
+
+	private static int parsePermits(String node) {
+		return Integer.parseInt(node.substring(PERMITPREFIX.length() + 1, node.lastIndexOf(DELIMITER)));
+	}
+
+	// deletes a permit node even if the calling thread has been interrupted (see ReentrantZkLock#releaseNode)
+	private void deleteNode(String permitNode) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			ZkUtils.ensureDelete(zkSessionManager, permitNode, -1);
+		}catch(InterruptedException e) {
+			interrupted = true;
+			new ZkAsyncClient(zkSessionManager).safeDelete(permitNode, -1);
+		}finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * One wait for permits: counts down the permits of the nodes ahead as they leave, on the ZooKeeper event
+	 * thread, and wakes the waiting thread only once the missing permits have all been freed, or the wait cannot
+	 * be trusted any more: a getData failed, leaving its node without a watch, or the connection changed. Each
+	 * node is counted once, whether it is found gone by getData or reported deleted by its watch.
+	 */
+	private final class PermitWait implements Watcher, AsyncCallback.DataCallback {
+		private final Condition freed = localLock.newCondition();
+		// guarded by localLock
+		private final Set<String> counted = new HashSet<String> ();
+		private int missing;
+		private boolean lost;
+
+		private PermitWait(int missing) {
+			this.missing = missing;
+		}
+
+		@Override
+		public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+			if(rc == KeeperException.Code.NONODE.intValue()) {
+				free(path, (Integer) ctx);
+			}else if(rc != KeeperException.Code.OK.intValue()) {
+				// connection loss and the like: nothing watches this node
+				lose();
+			}
+		}
+
+		@Override
+		public void process(WatchedEvent event) {
+			if(event.getType() == Event.EventType.NodeDeleted) {
+				free(event.getPath(), parsePermits(event.getPath().substring(event.getPath().lastIndexOf('/') + 1)));
+			}else if(event.getType() == Event.EventType.None && (event.getState() == Event.KeeperState.Expired
+					|| event.getState() == Event.KeeperState.Disconnected || event.getState() == Event.KeeperState.SyncConnected)) {
+				lose();
+			}
+		}
+
+		private void free(String path, int n) {
+			localLock.lock();
+			try {
+				if(counted.add(path)) {
+					missing -= n;
+					if(missing <= 0) {
+						freed.signalAll();
+					}
+				}
+			}finally {
+				localLock.unlock();
+			}
+		}
+
+		private void lose() {
+			localLock.lock();
+			try {
+				lost = true;
+				freed.signalAll();
+			}finally {
+				localLock.unlock();
+			}
+		}
+
+		/*
+		 * Returns true once enough permits have been freed, false if the time ran out first, and null if the wait
+		 * was lost meanwhile. The timeout is ignored if the wait is untimed.
+		 */
+		private Boolean await(boolean untimed, long timeoutNanos) throws InterruptedException {
+			localLock.lock();
+			try {
+				long remaining = timeoutNanos;
+				while(missing > 0 && !lost) {
+					if(untimed) {
+						freed.await();
+					}else if(remaining <= 0) {
+						return Boolean.FALSE;
+					}else {
+						remaining = freed.awaitNanos(remaining);
+					}
+				}
+				return missing <= 0 ? Boolean.TRUE : null;
+			}finally {
+				localLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.dw.zk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description: A local file holding the id and password of a ZooKeeper session, so that a restarted process
+ * can reconnect to the session of its previous incarnation, and keep the ephemeral nodes it owned.
+ * <p>
+ * Besides the credentials, the file records the directories in which lock nodes have been created on the
+ * session. After a resume, the nodes found in those directories which are still owned by the session are
+ * kept aside: the first lock on a directory adopts one of them instead of queueing a new node, and the
+ * session manager deletes those nobody adopted after a grace period.
+ * @author caohui
+ */
+final class ZkSessionFile {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZkSessionFile.class);
+
+	private static final String SESSION_ID = "sessionId";
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+	private static final String PASSWORD = "password";
+	private static final String DIRECTORY_PREFIX = "directory.";
+
+	// the session files of the live sessions of this JVM, by session id
+	private static final Map<Long, ZkSessionFile> ACTIVE = new ConcurrentHashMap<Long, ZkSessionFile> ();
+
+	private final File file;
+	private final Set<String> directories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean> ());
+	// nodes left over by the previous incarnation of the session, by directory
+	private final ConcurrentHashMap<String, Queue<String>> resumedNodes = new ConcurrentHashMap<String, Queue<String>> ();
+	// guards the updates of the credentials and the file itself
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile long sessionId;
+	private volatile byte[] password;
+
+	ZkSessionFile(String path) {
+		this.file = new File(path);
+	}
+
+	/**
+	 * Description: Returns the session file of the given live session, or null if it was not started with one.
+	 */
+	static ZkSessionFile forSession(long sessionId) {
+		return ACTIVE.get(sessionId);
+	}
+
+	/**
+	 * Description: Loads the saved credentials, returning false if there are none (or they are unreadable).
+	 */
+	boolean load() {
+		lock.lock();
+		try {
+			if(!file.exists()) {
+				return false;
+			}
+			Properties ps = new Properties();
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				ps.load(in);
+				sessionId = Long.parseLong(ps.getProperty(SESSION_ID), 16);
+				password = fromHex(ps.getProperty(PASSWORD));
+				for(String key : ps.stringPropertyNames()) {
+					if(key.startsWith(DIRECTORY_PREFIX)) {
+						directories.add(ps.getProperty(key));
+					}
+				}
+				return true;
+			}catch(Exception e) {
+				LOGGER.warn("忽略无法读取的session文件 " + file, e);
+				return false;
+			}finally {
+				closeQuietly(in);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	long getSessionId() {
+		return sessionId;
+	}
+
+	byte[] getPassword() {
+		return password;
+	}
+
+	/**
+	 * Description: Saves the credentials of a newly established (or resumed) session, and makes this file the
+	 * session file of that session.
+	 */
+	void save(long sessionId, byte[] password) {
+		lock.lock();
+		try {
+			if(this.sessionId != sessionId) {
+				ACTIVE.remove(this.sessionId);
+				// a new session owns nothing yet
+				directories.clear();
+				resumedNodes.clear();
+			}
+			this.sessionId = sessionId;
+			this.password = password.clone();
+			ACTIVE.put(sessionId, this);
+			write();
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Description: Forgets the saved session, e.g. when it turned out to be expired or was closed.
+	 */
+	void clear() {
+		lock.lock();
+		try {
+			ACTIVE.remove(sessionId);
+			directories.clear();
+			resumedNodes.clear();
+			password = null;
+			if(file.exists() && !file.delete()) {
+				LOGGER.warn("无法删除session文件 " + file);
+			}
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	List<String> getDirectories() {
+		lock.lock();
+		try {
+			return new ArrayList<String> (directories);
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Description: Records that lock nodes are created under the given directory. Only the first call for a
+	 * directory rewrites the file.
+	 */
+	void recordDirectory(String directory) {
+		if(directories.add(directory)) {
+			lock.lock();
+			try {
+				write();
+			}finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	void addResumedNode(String directory, String node) {
+		Queue<String> nodes = resumedNodes.get(directory);
+		if(nodes == null) {
+			Queue<String> created = new ConcurrentLinkedQueue<String> ();
+			nodes = resumedNodes.putIfAbsent(directory, created);
+			if(nodes == null) {
+				nodes = created;
+			}
+		}
+		nodes.add(node);
+	}
+
+	/**
+	 * Description: Hands out one of the nodes the previous incarnation left in the directory, or null if none.
+	 *
+	 * @return the full path of the adopted node
+	 */
+	String claimResumedNode(String directory, String prefix) {
+		Queue<String> nodes = resumedNodes.get(directory);
+		if(nodes == null) {
+			return null;
+		}
+		for(String node : nodes) {
+			if(node.startsWith(prefix) && nodes.remove(node)) {
+				return directory + "/" + node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Description: Removes and returns the full paths of every resumed node nobody has adopted.
+	 */
+	List<String> drainResumedNodes() {
+		List<String> unclaimed = new ArrayList<String> ();
+		for(Map.Entry<String, Queue<String>> entry : resumedNodes.entrySet()) {
+			String node;
+			while((node = entry.getValue().poll()) != null) {
+				unclaimed.add(entry.getKey() + "/" + node);
+			}
+		}
+		return unclaimed;
+	}
+
+	// must hold the lock; writes to a temporary file first, so that a crash never leaves a partial file
+	private void write() {
+		if(password == null) {
+			return;
+		}
+		Properties ps = new Properties();
+		ps.setProperty(SESSION_ID, Long.toHexString(sessionId));
+		ps.setProperty(PASSWORD, toHex(password));
+		int i = 0;
+		for(String directory : directories) {
+			ps.setProperty(DIRECTORY_PREFIX + (i++), directory);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			createOwnerOnly(tmp);
+			out = new FileOutputStream(tmp);
+			ps.store(out, "zk session");
+			out.close();
+			out = null;
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			LOGGER.error("保存session文件失败 " + file, e);
+		}finally {
+			closeQuietly(out);
+		}
+	}
+
+	/*
+	 * Creates the file readable and writable by its owner only: anyone who can read the id and password can take
+	 * the session over, and with it every lock it holds. A file left over by a crash is replaced, as it may have
+	 * been created with other permissions.
+	 */
+	private static void createOwnerOnly(File tmp) throws IOException {
+		Path path = tmp.toPath();
+		Files.deleteIfExists(path);
+		if(Files.getFileStore(path.toAbsolutePath().getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+			return;
+		}
+		// not a POSIX file system: restrict the file as far as java.io allows
+		Files.createFile(path);
+		if(!(tmp.setReadable(false, false) && tmp.setReadable(true, true)
+				&& tmp.setWritable(false, false) && tmp.setWritable(true, true))) {
+			LOGGER.warn("无法限制session文件的访问权限:" + tmp);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i=0; i<bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			}catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -15,6 +15,7 @@
  */
 package com.dw.zk;
 
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 
 /**
@@ -47,6 +48,29 @@ public interface ZkSessionManager {
      */
     ZooKeeper getZooKeeper();
 
+    /**
+     * Brings this client's view of ZooKeeper up to date with the leader, so that every update committed
+     * before this call is visible to subsequent reads through {@link #getZooKeeper()}.
+     * <p>
+     * Concurrent calls are coalesced: while a sync is in flight, callers share a single follow-up sync
+     * instead of each sending their own, and block until that sync completes.
+     *
+     * @throws KeeperException if the sync could not be completed
+     * @throws InterruptedException if interrupted while waiting for the sync to complete
+     * @throws IllegalStateException if this SessionManager has been closed
+     */
+    void syncIfStale() throws KeeperException, InterruptedException;
+
+    /**
+     * Gets the current estimate of the round-trip time to the ZooKeeper service.
+     * <p>
+     * Callers waiting on ZooKeeper with a deadline may use this to give up early, once the time left is less
+     * than what a single request would take.
+     *
+     * @return the smoothed round-trip time in nanoseconds, or -1 if this manager has no measurement
+     */
+    long getRoundTripNanos();
+
     /**
      * Closes this Session, and renders all future calls to {@link #getZooKeeper()} invalid.
      */
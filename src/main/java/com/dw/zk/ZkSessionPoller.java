@@ -19,12 +19,17 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.SimpleLayout;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
-import java.util.concurrent.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Mechanism for automatically checking and firing Session Expiration events to the application
@@ -33,6 +38,16 @@ import java.util.concurrent.*;
  * This mechanism is in place for when Disconnected events aren't quite enough--you also need to know
  * about Session Expiration events, and you need to know even in the event of total ZooKeeper connection failure.
  * This may include scenarios like Leader-Election as a governing mechanism for running tasks
+ * <p>
+ * Polls are asynchronous pings ({@code exists("/")}) with at most one in flight, and their round-trip time is
+ * measured on the monotonic clock and exposed as a smoothed estimate through {@link #getRoundTripNanos()}.
+ * The poll interval adapts to the health of the session: while pings succeed it backs off from the
+ * configured interval up to {@value #MAX_BACKOFF_FACTOR} times that (but never beyond a third of the session
+ * timeout), and while the connection is lost it shrinks as the time spent disconnected approaches the session
+ * timeout, so that expiration is detected close to when the ensemble expires the session.
+ * <p>
+ * All pollers of the JVM are multiplexed onto the shared {@link ZkScheduler}, so starting or stopping
+ * a poller never creates or destroys a thread.
  *
  * @author Scott Fines
  *         Date: Apr 21, 2011
@@ -40,24 +55,31 @@ import java.util.concurrent.*;
  */
 public final class ZkSessionPoller {
     private static final Logger logger = Logger.getLogger(ZkSessionPoller.class);
+    /*Upper bound of the poll interval while healthy, as a multiple of the configured interval*/
+    private static final int MAX_BACKOFF_FACTOR = 8;
+    /*Lower bound of the poll interval while disconnected*/
+    private static final long MIN_POLL_INTERVAL_MS = 10;
+    /*Weight of a new sample in the smoothed round-trip time, as in TCP (RFC 6298)*/
+    private static final int RTT_SMOOTHING_SHIFT = 3;
+
     /*Poll interval in milliseconds*/
     private final long pollIntervalMs;
     /*The zookeeper instance to check*/
     private final ZooKeeper zk;
-    private final Object disconnectTimeLock = "Lock";
-    private Long startDisconnectTime;
 
     private final ConnectionListener pollListener;
 
-    /*executor to poll*/
-    private final ScheduledExecutorService poller= Executors.newScheduledThreadPool(1,new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable runnable) {
-            Thread t = new Thread(runnable);
-            t.setName("menagerie-ZkConnectionPoller");
-            return t;
-        }
-    });
+    /*guards poll*/
+    private final ReentrantLock pollLock = new ReentrantLock();
+    /*the scheduled poll on the shared scheduler, guarded by pollLock*/
+    private ScheduledFuture<?> poll;
+    private volatile boolean stopped;
+
+    /*state of the poll chain; only one poll is in flight at any time, so these are never written concurrently*/
+    private volatile long sessionTimeoutNanos;
+    private volatile long currentIntervalMs;
+    private volatile long startDisconnectNanos = -1;
+    private volatile long roundTripNanos = -1;
 
     public ZkSessionPoller(ZooKeeper zk,long pollIntervalMs,ConnectionListener pollListener) {
         this.pollIntervalMs = pollIntervalMs;
@@ -66,54 +88,120 @@ public final class ZkSessionPoller {
     }
 
     public void startPolling(){
-        poller.scheduleWithFixedDelay(new SessionPoller(),0l,pollIntervalMs, TimeUnit.MILLISECONDS);
+        pollLock.lock();
+        try{
+            if(stopped || poll != null) return;
+            sessionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(zk.getSessionTimeout());
+            currentIntervalMs = pollIntervalMs;
+            poll = ZkScheduler.schedule(new SessionPoller(),0l, TimeUnit.MILLISECONDS);
+        }finally{
+            pollLock.unlock();
+        }
     }
 
     public void stopPolling(){
-        poller.shutdownNow();
+        pollLock.lock();
+        try{
+            stopped = true;
+            if(poll != null){
+                poll.cancel(false);
+            }
+        }finally{
+            pollLock.unlock();
+        }
     }
 
-    private class SessionPoller implements Runnable{
-        private final int sessionTimeoutPeriod;
+    /**
+     * @return the smoothed round-trip time of the pings to ZooKeeper in nanoseconds, or -1 if no ping has
+     * completed yet
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
 
-        private SessionPoller() {
-            sessionTimeoutPeriod = zk.getSessionTimeout();
+    /**
+     * @return how long the pings have been failing with a connection loss in nanoseconds, or 0 if the last
+     * ping succeeded
+     */
+    public long getDisconnectedNanos() {
+        long start = startDisconnectNanos;
+        return start < 0 ? 0 : System.nanoTime() - start;
+    }
+
+    private void scheduleNext(long delayMs) {
+        pollLock.lock();
+        try{
+            if(stopped) return;
+            poll = ZkScheduler.schedule(new SessionPoller(),delayMs, TimeUnit.MILLISECONDS);
+        }finally{
+            pollLock.unlock();
         }
+    }
+
+    /*
+     * Sends one ping. This runs on the shared scheduler thread, so it must never block.
+     */
+    private class SessionPoller implements Runnable{
 
         @Override
         public void run() {
-            if(Thread.currentThread().isInterrupted())return; //we've been canceled, so return
+            if(stopped)return; //we've been canceled, so return
             if(logger.isTraceEnabled())
                 logger.trace("current state of ZooKeeper object: "+ zk.getState());
-            try{
-                zk.exists("/",false);
-                synchronized(disconnectTimeLock){
-                    startDisconnectTime=null;
+            zk.exists("/",false,new PingCallback(),System.nanoTime());
+        }
+    }
+
+    private class PingCallback implements AsyncCallback.StatCallback{
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if(stopped)return;
+            long sentNanos = (Long)ctx;
+            long now = System.nanoTime();
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if(code == KeeperException.Code.OK){
+                recordRoundTrip(now-sentNanos);
+                startDisconnectNanos = -1;
+                //healthy: back off, but stay well within the session timeout
+                long maxIntervalMs = Math.min(pollIntervalMs*MAX_BACKOFF_FACTOR,
+                        Math.max(pollIntervalMs,TimeUnit.NANOSECONDS.toMillis(sessionTimeoutNanos)/3));
+                currentIntervalMs = Math.min(currentIntervalMs*2,maxIntervalMs);
+                scheduleNext(currentIntervalMs);
+            }else if(code == KeeperException.Code.SESSIONEXPIRED){
+                expire();
+            }else if(code == KeeperException.Code.CONNECTIONLOSS){
+                logger.debug("Received a ConnectionLoss Exception, determining if our session has expired");
+                if(startDisconnectNanos < 0){
+                    //the connection was already gone when this ping was sent
+                    startDisconnectNanos = sentNanos;
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (KeeperException e) {
-                if(e.code()==KeeperException.Code.SESSIONEXPIRED){
+                long remainingNanos = sessionTimeoutNanos-(now-startDisconnectNanos);
+                if(remainingNanos <= 0){
                     expire();
-                }else if(e.code() == KeeperException.Code.CONNECTIONLOSS){
-                    logger.debug("Received a ConnectionLoss Exception, determining if our session has expired");
-                    long currentTime = System.currentTimeMillis();
-                    boolean shouldExpire=false;
-                    synchronized(disconnectTimeLock){
-                        if(startDisconnectTime==null){
-                            startDisconnectTime = currentTime;
-                        }else if((currentTime-startDisconnectTime)>sessionTimeoutPeriod){
-                            shouldExpire=true;
-                        }
-                    }
-                    if(shouldExpire)expire();
-                }else{
-                    e.printStackTrace();
+                    return;
                 }
+                //poll more often as the session timeout approaches
+                currentIntervalMs = pollIntervalMs;
+                long delayMs = Math.min(pollIntervalMs,TimeUnit.NANOSECONDS.toMillis(remainingNanos)/4);
+                scheduleNext(Math.max(delayMs,MIN_POLL_INTERVAL_MS));
+            }else{
+                logger.warn("Unexpected result while polling the ZooKeeper session: "+code);
+                currentIntervalMs = pollIntervalMs;
+                scheduleNext(pollIntervalMs);
             }
         }
     }
 
+    private void recordRoundTrip(long sampleNanos) {
+        long current = roundTripNanos;
+        roundTripNanos = current < 0 ? sampleNanos : current+((sampleNanos-current)>>RTT_SMOOTHING_SHIFT);
+    }
+
+    /*
+     * Runs in the ping callback, on the ZooKeeper event thread: the listener must hand anything blocking, like
+     * closing the ZooKeeper instance, off to another thread.
+     */
     private void expire() {
         //session expired!
         logger.info("Session has expired, notifying listenerand shutting down poller");
@@ -0,0 +1,268 @@
+package com.dw.zk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Description: Shares ZooKeeper sessions between all the users of the same ensemble in this JVM.
+ * <p>
+ * Sessions are keyed by ensemble (the set of servers, in any order), session timeout and chroot. Every
+ * {@link #acquire} returns a lease on the shared session: a {@link ZkSessionManager} whose
+ * {@link ZkSessionManager#shutdown()} releases the lease, and removes the connection listeners added through
+ * it, instead of closing the session. A session is closed once it has had no lease for the idle grace period,
+ * so that a short-lived user following another one does not have to reconnect.
+ * @author caohui
+ */
+public final class ZkSessionRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZkSessionRegistry.class);
+
+	private static final int DEFAULT_PORT = 2181;
+	private static final long DEFAULT_IDLE_GRACE_MILLIS = 60000;
+
+	private static final ZkSessionRegistry DEFAULT = new ZkSessionRegistry(DEFAULT_IDLE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+
+	private final long idleGraceMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	// guarded by lock
+	private final Map<String, Entry> sessions = new HashMap<String, Entry> ();
+
+	/**
+	 * @param idleGrace how long a session without leases stays open
+	 * @param unit      the unit of {@code idleGrace}
+	 */
+	public ZkSessionRegistry(long idleGrace, TimeUnit unit) {
+		this.idleGraceMillis = unit.toMillis(idleGrace);
+	}
+
+	/**
+	 * Description: The registry used by {@link ZkUtils}.
+	 */
+	public static ZkSessionRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Description: Leases the session to the given ensemble, opening a {@link DefaultZkSessionManager} if
+	 * there is none.
+	 */
+	public ZkSessionManager acquire(final String connectionString, final int timeout) {
+		return acquire(connectionString, timeout, new Supplier<ZkSessionManager>() {
+			@Override
+			public ZkSessionManager get() {
+				return new DefaultZkSessionManager(connectionString, timeout);
+			}
+		});
+	}
+
+	/**
+	 * Description: Leases the session to the given ensemble, opening one with the factory if there is none.
+	 *
+	 * @param factory creates the session manager, which must connect to the given ensemble with the given timeout
+	 */
+	public ZkSessionManager acquire(String connectionString, int timeout, Supplier<? extends ZkSessionManager> factory) {
+		String key = key(connectionString, timeout);
+		Entry entry;
+		lock.lock();
+		try {
+			entry = sessions.get(key);
+			if(entry == null) {
+				entry = new Entry(key, factory.get());
+				sessions.put(key, entry);
+			}
+			entry.leases++;
+			if(entry.idleClose != null) {
+				entry.idleClose.cancel(false);
+				entry.idleClose = null;
+			}
+		}finally {
+			lock.unlock();
+		}
+		return new Lease(entry);
+	}
+
+	/**
+	 * @return the number of sessions currently open through this registry
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return sessions.size();
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(final Entry entry) {
+		lock.lock();
+		try {
+			if(--entry.leases > 0 || sessions.get(entry.key) != entry) {
+				return;
+			}
+			if(idleGraceMillis > 0) {
+				entry.idleClose = ZkScheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						closeIfIdle(entry);
+					}
+				}, idleGraceMillis, TimeUnit.MILLISECONDS);
+				return;
+			}
+			sessions.remove(entry.key);
+		}finally {
+			lock.unlock();
+		}
+		close(entry);
+	}
+
+	private void closeIfIdle(Entry entry) {
+		lock.lock();
+		try {
+			if(entry.leases > 0 || sessions.get(entry.key) != entry) {
+				return;
+			}
+			sessions.remove(entry.key);
+		}finally {
+			lock.unlock();
+		}
+		close(entry);
+	}
+
+	private static void close(Entry entry) {
+		LOGGER.info("关闭空闲的zk session:{}", entry.key);
+		try {
+			entry.manager.shutdown();
+		}catch(RuntimeException e) {
+			LOGGER.warn("关闭zk session异常:" + entry.key, e);
+		}
+	}
+
+	/*
+	 * The servers of the ensemble in canonical order, the timeout and the chroot.
+	 */
+	static String key(String connectionString, int timeout) {
+		String chroot = "";
+		String hostList = connectionString.trim();
+		int slash = hostList.indexOf('/');
+		if(slash >= 0) {
+			chroot = hostList.substring(slash);
+			hostList = hostList.substring(0, slash);
+		}
+		List<String> hosts = new ArrayList<String> ();
+		for(String host : hostList.split(",")) {
+			host = host.trim().toLowerCase();
+			if(host.isEmpty()) {
+				continue;
+			}
+			hosts.add(host.indexOf(':') < 0 ? host + ":" + DEFAULT_PORT : host);
+		}
+		String[] sorted = hosts.toArray(new String[hosts.size()]);
+		Arrays.sort(sorted);
+		StringBuilder key = new StringBuilder();
+		for(String host : sorted) {
+			if(key.length() > 0) {
+				key.append(',');
+			}
+			key.append(host);
+		}
+		return key.append(chroot).append('|').append(timeout).toString();
+	}
+
+	/**
+	 * Description: Returns the shared session manager behind a lease, or the given manager if it is not one.
+	 */
+	static ZkSessionManager unwrap(ZkSessionManager manager) {
+		return manager instanceof Lease ? ((Lease) manager).entry.manager : manager;
+	}
+
+	private static final class Entry {
+		private final String key;
+		private final ZkSessionManager manager;
+		private int leases;
+		private ScheduledFuture<?> idleClose;
+
+		private Entry(String key, ZkSessionManager manager) {
+			this.key = key;
+			this.manager = manager;
+		}
+	}
+
+	private final class Lease implements ZkSessionManager {
+		private final Entry entry;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		// the listeners added through this lease, removed from the shared session on release
+		private final ConcurrentLinkedQueue<ConnectionListener> listeners = new ConcurrentLinkedQueue<ConnectionListener> ();
+
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		private ZkSessionManager manager() {
+			if(released.get()) {
+				throw new IllegalStateException("Cannot use a ZooKeeper session after its lease has been released!");
+			}
+			return entry.manager;
+		}
+
+		@Override
+		public ZooKeeper getZooKeeper() {
+			return manager().getZooKeeper();
+		}
+
+		@Override
+		public void syncIfStale() throws KeeperException, InterruptedException {
+			manager().syncIfStale();
+		}
+
+		@Override
+		public long getRoundTripNanos() {
+			return entry.manager.getRoundTripNanos();
+		}
+
+		/**
+		 * Releases this lease; the session is closed once nobody has leased it for the idle grace period.
+		 */
+		@Override
+		public void shutdown() {
+			if(!released.compareAndSet(false, true)) {
+				return;
+			}
+			ConnectionListener listener;
+			while((listener = listeners.poll()) != null) {
+				entry.manager.removeConnectionListener(listener);
+			}
+			release(entry);
+		}
+
+		@Override
+		public void addConnectionListener(ConnectionListener listener) {
+			manager().addConnectionListener(listener);
+			listeners.add(listener);
+			// released meanwhile: make sure the listener does not outlive the lease
+			if(released.get() && listeners.remove(listener)) {
+				entry.manager.removeConnectionListener(listener);
+			}
+		}
+
+		@Override
+		public void removeConnectionListener(ConnectionListener listener) {
+			if(listeners.remove(listener)) {
+				entry.manager.removeConnectionListener(listener);
+			}
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package com.dw.zk;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.zookeeper.CreateMode;
@@ -28,21 +30,32 @@ public final class ZkUtils {
 	// 分布式锁默认路径
 	public static final String BASE_DIR_LOCK = ZkUtils.PROJECT_PREFIX + "/lock/";
 	
+	// 分布式信号量默认路径
+	public static final String BASE_DIR_SEMAPHORE = ZkUtils.PROJECT_PREFIX + "/semaphore/";
+	
 	private static final int DEFAULT_COUNT = 5;
 	private static final int DEFAULT_MAX = 50;
 	private static final int THREAD_SLEEP = 10;
 	
 	// 缓存同一个path下的分布式锁
 	private static final ConcurrentHashMap<String, Lock> LOCK_MAP = new ConcurrentHashMap<String, Lock> ();
-	private static Map<String, ZkSessionManager> zkSessionManagerMap = new ConcurrentHashMap<String, ZkSessionManager> ();
-	
-	private static Object obj = new Object();
-	
+	private static final ConcurrentHashMap<String, ReadWriteLock> READ_WRITE_LOCK_MAP = new ConcurrentHashMap<String, ReadWriteLock> ();
+	private static final ConcurrentHashMap<String, ZkSemaphore> SEMAPHORE_MAP = new ConcurrentHashMap<String, ZkSemaphore> ();
+	private static final ConcurrentHashMap<String, StripedZkLock> STRIPED_LOCK_MAP = new ConcurrentHashMap<String, StripedZkLock> ();
+	private static final ConcurrentHashMap<String, MultiZkLock> MULTI_LOCK_MAP = new ConcurrentHashMap<String, MultiZkLock> ();
 	private ZkUtils() {}
 	
 	// 初始化zksessionmanager
 	public static final ZkSessionManager ZK_SESSION_MANAGER = init();
 	
+	// 配置了lockCoalescing=true时同一个JVM内的线程先在本地排队，只有一个线程到zk竞争锁
+	private static final boolean LOCK_COALESCING = Boolean.TRUE.equals(
+			PropertiesReader.getAppointPropertiesAttribute("zkConfig", "lockCoalescing", Boolean.class));
+	
+	// 配置了stickyLease=true时释放锁后保留锁节点，没有其他人排队时再次加锁不需要访问zk
+	private static final boolean STICKY_LEASE = Boolean.TRUE.equals(
+			PropertiesReader.getAppointPropertiesAttribute("zkConfig", "stickyLease", Boolean.class));
+	
 	public static boolean isACL() throws KeeperException, InterruptedException {
 		ZooKeeper zk = ZK_SESSION_MANAGER.getZooKeeper();
 		byte[] data = new byte[1];
@@ -53,6 +66,7 @@ public final class ZkUtils {
 	
 	/**
 	 * Description: create 带有监听器的ZkSessionManager
+	 * 与ZK_SESSION_MANAGER共享同一个session，用完后调用shutdown()释放，同时移除这里添加的监听器
 	 * All Rights Reserved.
 	 *
 	 * @param listeners
@@ -62,6 +76,9 @@ public final class ZkUtils {
 	 */
 	public static ZkSessionManager createListenerZkSessionManager(ConnectionListener ... listeners) {
 		ZkSessionManager manager = init();
+		if(manager == null) {
+			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
+		}
 		for(int i=0; i<listeners.length; i++) {
 			manager.addConnectionListener(listeners[i]);
 		}
@@ -76,8 +93,16 @@ public final class ZkUtils {
 		try {
 			Lock lock = LOCK_MAP.get(path);
 			if(lock == null) {
-				lock = new ReentrantZkLock(path, ZK_SESSION_MANAGER);
-				LOCK_MAP.put(path, lock);
+				// 同一个path只使用一个锁对象，本地线程才能合并；构造时会访问zk，只能创建一次
+				lock = LOCK_MAP.computeIfAbsent(path, new Function<String, Lock>() {
+					@Override
+					public Lock apply(String baseNode) {
+						ReentrantZkLock zkLock = new ReentrantZkLock(baseNode, ZK_SESSION_MANAGER);
+						zkLock.setLocalCoalescing(LOCK_COALESCING);
+						zkLock.setStickyLease(STICKY_LEASE);
+						return zkLock;
+					}
+				});
 			}
 			return lock;
 		}catch(Exception e) {
@@ -96,17 +121,175 @@ public final class ZkUtils {
 		return prefix;
 	}
 	
+	// 从session注册表租用配置的session，第一次使用时按配置创建
 	private static ZkSessionManager init() {
-		Properties ps = PropertiesReader.getProperties("zkConfig");
-		String servers = ps.getProperty("servers");
-		String timeout = ps.getProperty("timeout");
+		final Properties ps = PropertiesReader.getProperties("zkConfig");
+		if(ps == null) {
+			// 没有zkConfig配置时只能使用自己创建的ZkSessionManager
+			LOGGER.warn("没有找到zkConfig配置文件");
+			return null;
+		}
+		final String servers = ps.getProperty("servers");
+		final String timeout = ps.getProperty("timeout");
 		if(StringUtils.isEmpty(servers) || StringUtils.isEmpty(timeout)) {
 			throw new RuntimeException("zkConfig.properties 配置错误!");
 		}
-		ZkSessionManager manager = new DefaultZkSessionManager(servers.trim(), Integer.parseInt(timeout.trim()));
+		return ZkSessionRegistry.getDefault().acquire(servers.trim(), Integer.parseInt(timeout.trim()), new Supplier<ZkSessionManager>() {
+			@Override
+			public ZkSessionManager get() {
+				return createSessionManager(ps, servers, timeout);
+			}
+		});
+	}
+	
+	private static ZkSessionManager createSessionManager(Properties ps, String servers, String timeout) {
+		// 配置了pollInterval时检测session过期并测量zk的响应时间
+		String pollInterval = ps.getProperty("pollInterval");
+		int zkSessionPollInterval = StringUtils.isEmpty(pollInterval) ? -1 : Integer.parseInt(pollInterval.trim());
+		// 配置了sessionFile时保存session，重启后恢复同一个session及其锁节点
+		String sessionFile = ps.getProperty("sessionFile");
+		// 配置了probeTimeout时连接前探测各zk服务的延迟，只连接最近的服务
+		String probeTimeout = ps.getProperty("probeTimeout");
+		ServerProbe probe = StringUtils.isEmpty(probeTimeout) ? null : new TcpConnectProbe(Integer.parseInt(probeTimeout.trim()));
+		// 配置了poolSize时使用多个session分担锁的请求和watch
+		String poolSize = ps.getProperty("poolSize");
+		if(!StringUtils.isEmpty(poolSize) && Integer.parseInt(poolSize.trim()) > 1) {
+			int size = Integer.parseInt(poolSize.trim());
+			ZkSessionManager[] sessions = new ZkSessionManager[size];
+			for(int i=0; i<size; i++) {
+				DefaultZkSessionManager session = new DefaultZkSessionManager(servers.trim(), Integer.parseInt(timeout.trim()), zkSessionPollInterval);
+				session.setServerProbe(probe);
+				if(!StringUtils.isEmpty(sessionFile)) {
+					session.setSessionFile(sessionFile.trim() + "." + i);
+				}
+				sessions[i] = session;
+			}
+			return new PooledZkSessionManager(sessions);
+		}
+		DefaultZkSessionManager manager = new DefaultZkSessionManager(servers.trim(), Integer.parseInt(timeout.trim()), zkSessionPollInterval);
+		manager.setServerProbe(probe);
+		if(!StringUtils.isEmpty(sessionFile)) {
+			manager.setSessionFile(sessionFile.trim());
+		}
 		return manager;
 	}
 	
+	/**
+	 * Description: 获取分布式读写锁，读锁之间可以并发持有
+	 *
+	 * @param serviceName
+	 * @return ReadWriteLock
+	 */
+	public static ReadWriteLock getDistributedReadWriteLock(String serviceName) {
+		if(ZK_SESSION_MANAGER == null) {
+			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
+		}
+		String path = BASE_DIR_LOCK + serviceName;
+		try {
+			ReadWriteLock lock = READ_WRITE_LOCK_MAP.get(path);
+			if(lock == null) {
+				// 构造时会访问zk，只能创建一次
+				lock = READ_WRITE_LOCK_MAP.computeIfAbsent(path, new Function<String, ReadWriteLock>() {
+					@Override
+					public ReadWriteLock apply(String baseNode) {
+						return new ReentrantZkReadWriteLock(baseNode, ZK_SESSION_MANAGER);
+					}
+				});
+			}
+			return lock;
+		}catch(Exception e) {
+			LOGGER.error("获取分布式读写锁异常！", e);
+			throw new ZkRuntimeException("获取分布式读写锁异常!", e);
+		}
+	}
+	
+	/**
+	 * Description: 获取多key分布式锁，一次加多个serviceName的锁。与getDistributedLock(serviceName)使用相同的锁目录，两者互斥
+	 *
+	 * @return MultiZkLock
+	 */
+	public static MultiZkLock getMultiDistributedLock() {
+		if(ZK_SESSION_MANAGER == null) {
+			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
+		}
+		String path = BASE_DIR_LOCK.substring(0, BASE_DIR_LOCK.length() - 1);
+		MultiZkLock lock = MULTI_LOCK_MAP.get(path);
+		if(lock == null) {
+			// 构造时会访问zk并注册连接监听，只能创建一次
+			lock = MULTI_LOCK_MAP.computeIfAbsent(path, new Function<String, MultiZkLock>() {
+				@Override
+				public MultiZkLock apply(String baseNode) {
+					return new MultiZkLock(baseNode, ZK_SESSION_MANAGER);
+				}
+			});
+		}
+		return lock;
+	}
+	
+	/**
+	 * Description: 获取分条的分布式锁，key数量不受限制（例如按订单号加锁），zk上只有stripes个锁节点，
+	 * 所有节点必须使用相同的stripes
+	 *
+	 * @param serviceName
+	 * @param stripes
+	 * @return StripedZkLock 通过getLock(key)获取每个key的锁
+	 */
+	public static StripedZkLock getStripedDistributedLock(String serviceName, final int stripes) {
+		if(ZK_SESSION_MANAGER == null) {
+			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
+		}
+		String path = BASE_DIR_LOCK + serviceName;
+		StripedZkLock lock = STRIPED_LOCK_MAP.get(path);
+		if(lock == null) {
+			// 构造时会访问zk，只能创建一次
+			lock = STRIPED_LOCK_MAP.computeIfAbsent(path, new Function<String, StripedZkLock>() {
+				@Override
+				public StripedZkLock apply(String baseNode) {
+					return new StripedZkLock(baseNode, ZK_SESSION_MANAGER, stripes);
+				}
+			});
+		}
+		if(lock.getStripes() != stripes) {
+			throw new IllegalArgumentException("分条锁" + path + "已经以" + lock.getStripes() + "个分条创建");
+		}
+		return lock;
+	}
+	
+	/**
+	 * Description: 获取分布式信号量，限制整个集群同时持有的许可数，所有节点必须使用相同的许可数
+	 *
+	 * @param serviceName
+	 * @param permits
+	 * @return ZkSemaphore
+	 */
+	public static ZkSemaphore getDistributedSemaphore(String serviceName, final int permits) {
+		if(ZK_SESSION_MANAGER == null) {
+			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
+		}
+		String path = BASE_DIR_SEMAPHORE + serviceName;
+		ZkSemaphore semaphore = SEMAPHORE_MAP.get(path);
+		if(semaphore == null) {
+			try {
+				// 构造时会访问zk，只能创建一次
+				semaphore = SEMAPHORE_MAP.computeIfAbsent(path, new Function<String, ZkSemaphore>() {
+					@Override
+					public ZkSemaphore apply(String baseNode) {
+						return new ZkSemaphore(baseNode, ZK_SESSION_MANAGER, permits);
+					}
+				});
+			}catch(IllegalArgumentException e) {
+				throw e;
+			}catch(Exception e) {
+				LOGGER.error("获取分布式信号量异常！", e);
+				throw new ZkRuntimeException("获取分布式信号量异常!", e);
+			}
+		}
+		if(semaphore.getPermits() != permits) {
+			throw new IllegalArgumentException("信号量" + path + "已经以" + semaphore.getPermits() + "个许可创建");
+		}
+		return semaphore;
+	}
+	
 	public static Lock getDynamicPathDistributedLock(String serviceName) {
 		if(ZK_SESSION_MANAGER == null) {
 			throw new ZkRuntimeException("没有加载zk配置，请检查配置文件");
@@ -213,22 +396,16 @@ public final class ZkUtils {
 		return result;
 	}
 	
+	/**
+	 * Description: 租用到指定zk集群的session，相同集群、超时时间和chroot的调用共享同一个session
+	 * 用完后调用shutdown()释放，没有租用者的session在空闲一段时间后关闭
+	 * All Rights Reserved.
+	 *
+	 * @param servers
+	 * @param timeout
+	 * @return ZkSessionManager
+	 */
 	public static ZkSessionManager getInstance(String servers, String timeout) {
-		ZkSessionManager manager = zkSessionManagerMap.get(servers);
-		if(manager == null) {
-			synchronized(obj) {
-				manager = zkSessionManagerMap.get(servers);
-				if(manager != null) {
-					return manager;
-				}
-				
-				manager = new DefaultZkSessionManager(servers.trim(), Integer.parseInt(timeout.trim()));
-				if(manager != null) {
-					zkSessionManagerMap.put(servers, manager);
-					return manager;
-				}
-			}
-		}
-		return manager;
+		return ZkSessionRegistry.getDefault().acquire(servers.trim(), Integer.parseInt(timeout.trim()));
 	}
 }
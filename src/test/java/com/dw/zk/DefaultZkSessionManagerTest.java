@@ -0,0 +1,410 @@
+package com.dw.zk;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+public class DefaultZkSessionManagerTest extends TestCase {
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager manager;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		manager = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		manager.shutdown();
+		server.stop();
+	}
+
+	public void testReturnsConnectedSession() {
+		ZooKeeper zk = manager.getZooKeeper();
+		assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+		assertSame(zk, manager.getZooKeeper());
+	}
+
+	public void testReconnectsAfterClose() throws Exception {
+		ZooKeeper zk = manager.getZooKeeper();
+		zk.close();
+		ZooKeeper reconnected = manager.getZooKeeper();
+		assertNotSame(zk, reconnected);
+		assertEquals(ZooKeeper.States.CONNECTED, reconnected.getState());
+	}
+
+	public void testConcurrentSyncsAreCoalesced() throws Exception {
+		final int threads = 32;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch entered = new CountDownLatch(threads);
+		final AtomicInteger syncs = new AtomicInteger();
+		final DefaultZkSessionManager counting = new DefaultZkSessionManager(server.getConnectString(), 5000) {
+			@Override
+			void sendSync(ZooKeeper zooKeeper, SyncRound round) {
+				if(syncs.incrementAndGet() == 1) {
+					// hold the first sync back until every caller has arrived
+					try {
+						entered.await(10, TimeUnit.SECONDS);
+						Thread.sleep(200);
+					}catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.sendSync(zooKeeper, round);
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			counting.getZooKeeper();
+			Future<?>[] results = new Future<?>[threads];
+			for(int i=0; i<threads; i++) {
+				results[i] = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						entered.countDown();
+						counting.syncIfStale();
+						return null;
+					}
+				});
+			}
+			start.countDown();
+			for(Future<?> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+			// the first caller's sync, and the single follow-up shared by everyone who arrived while it was in flight
+			assertEquals(2, syncs.get());
+		}finally {
+			pool.shutdownNow();
+			counting.shutdown();
+		}
+	}
+
+	public void testSlowListenerDoesNotDelayOthers() throws Exception {
+		final CountDownLatch slowInterrupted = new CountDownLatch(1);
+		final CountDownLatch fastNotified = new CountDownLatch(1);
+		manager.setListenerTimeBudget(200, TimeUnit.MILLISECONDS);
+		manager.addConnectionListener(new ConnectionListenerSkeleton() {
+			@Override
+			public void syncConnected() {
+				try {
+					Thread.sleep(60000);
+				}catch(InterruptedException e) {
+					slowInterrupted.countDown();
+				}
+			}
+		});
+		manager.addConnectionListener(new ConnectionListenerSkeleton() {
+			@Override
+			public void syncConnected() {
+				fastNotified.countDown();
+			}
+		});
+		manager.getZooKeeper();
+		assertTrue(fastNotified.await(1, TimeUnit.SECONDS));
+		assertTrue(slowInterrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testListenerAddedTwiceNeedsTwoRemoves() throws Exception {
+		CountingListener counted = new CountingListener();
+		CountingListener sentinel = new CountingListener();
+		manager.addConnectionListener(sentinel);
+		manager.addConnectionListener(counted);
+		manager.addConnectionListener(counted);
+		manager.getZooKeeper();
+		// notified once per event, however many times it was added
+		assertTrue(counted.awaitNotifications(1));
+		assertTrue(sentinel.awaitNotifications(1));
+
+		manager.removeConnectionListener(counted);
+		reconnect();
+		assertTrue(counted.awaitNotifications(2));
+
+		manager.removeConnectionListener(counted);
+		reconnect();
+		assertTrue(sentinel.awaitNotifications(3));
+		Thread.sleep(200);
+		assertEquals(2, counted.notifications.get());
+	}
+
+	public void testRemovingUnknownListenerIsNoOp() throws Exception {
+		CountingListener registered = new CountingListener();
+		manager.addConnectionListener(registered);
+		manager.removeConnectionListener(new CountingListener());
+		manager.getZooKeeper();
+		assertTrue(registered.awaitNotifications(1));
+
+		// a listener removed more often than added stays removed, and can be added again
+		manager.removeConnectionListener(registered);
+		manager.removeConnectionListener(registered);
+		manager.addConnectionListener(registered);
+		reconnect();
+		assertTrue(registered.awaitNotifications(2));
+	}
+
+	public void testRemovedListenerIsNotNotified() throws Exception {
+		CountingListener removed = new CountingListener();
+		CountingListener sentinel = new CountingListener();
+		manager.addConnectionListener(sentinel);
+		manager.addConnectionListener(removed);
+		manager.removeConnectionListener(removed);
+		manager.getZooKeeper();
+		assertTrue(sentinel.awaitNotifications(1));
+		reconnect();
+		assertTrue(sentinel.awaitNotifications(2));
+		Thread.sleep(200);
+		assertEquals(0, removed.notifications.get());
+	}
+
+	public void testPollerPublishesRoundTripTime() throws Exception {
+		DefaultZkSessionManager polled = new DefaultZkSessionManager(server.getConnectString(), 5000, 20);
+		try {
+			assertEquals(-1, polled.getRoundTripNanos());
+			polled.getZooKeeper();
+			long deadline = System.currentTimeMillis() + 5000;
+			while(polled.getRoundTripNanos() < 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(polled.getRoundTripNanos() > 0);
+		}finally {
+			polled.shutdown();
+		}
+	}
+
+	public void testPollerClosesExpiredSession() throws Exception {
+		DefaultZkSessionManager polled = new DefaultZkSessionManager(server.getConnectString(), 4000, 100);
+		final CountDownLatch expired = new CountDownLatch(1);
+		polled.addConnectionListener(new ConnectionListenerSkeleton() {
+			@Override
+			public void expired() {
+				expired.countDown();
+			}
+		});
+		try {
+			ZooKeeper zk = polled.getZooKeeper();
+			// disconnected for longer than the session timeout: the poller declares the session expired
+			server.bounce(6000);
+			assertTrue(expired.await(5, TimeUnit.SECONDS));
+			long deadline = System.currentTimeMillis() + 5000;
+			while(zk.getState().isAlive() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse(zk.getState().isAlive());
+			assertTrue(polled.getZooKeeper().getSessionId() != zk.getSessionId());
+		}finally {
+			polled.shutdown();
+		}
+	}
+
+	public void testShutdownRejectsFurtherRequests() {
+		manager.getZooKeeper();
+		manager.shutdown();
+		try {
+			manager.getZooKeeper();
+			fail("expected IllegalStateException");
+		}catch(IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	public void testResumesSavedSessionAfterRestart() throws Exception {
+		File file = File.createTempFile("zk-session", ".properties");
+		file.delete();
+		DefaultZkSessionManager first = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		first.setSessionFile(file.getPath());
+		ZooKeeper zk = first.getZooKeeper();
+		long sessionId = zk.getSessionId();
+		zk.create("/locks", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		ZkSessionFile.forSession(sessionId).recordDirectory("/locks");
+		String kept = zk.create("/locks/lock-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+		String orphan = zk.create("/locks/other-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+		crash(zk);
+
+		DefaultZkSessionManager second = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		second.setSessionFile(file.getPath());
+		try {
+			ZooKeeper resumed = second.getZooKeeper();
+			assertEquals(sessionId, resumed.getSessionId());
+			assertEquals(kept, ZkSessionFile.forSession(sessionId).claimResumedNode("/locks", "lock-"));
+			assertNull(ZkSessionFile.forSession(sessionId).claimResumedNode("/locks", "lock-"));
+
+			// the node nobody adopted is deleted after one session timeout
+			long deadline = System.currentTimeMillis() + 10000;
+			while(resumed.exists(orphan, false) != null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertNull(resumed.exists(orphan, false));
+			assertNotNull(resumed.exists(kept, false));
+		}finally {
+			second.shutdown();
+		}
+		assertFalse(file.exists());
+	}
+
+	public void testStartsNewSessionWhenSavedOneExpired() throws Exception {
+		File file = File.createTempFile("zk-session", ".properties");
+		new ZkSessionFile(file.getPath()).save(0x1234L, new byte[16]);
+		DefaultZkSessionManager restarted = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		restarted.setSessionFile(file.getPath());
+		try {
+			ZooKeeper zk = restarted.getZooKeeper();
+			assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+			assertTrue(zk.getSessionId() != 0x1234L);
+			ZkSessionFile saved = new ZkSessionFile(file.getPath());
+			assertTrue(saved.load());
+			assertEquals(zk.getSessionId(), saved.getSessionId());
+		}finally {
+			restarted.shutdown();
+		}
+	}
+
+	public void testSessionFileIsReadableByOwnerOnly() throws Exception {
+		File file = File.createTempFile("zk-session", ".properties");
+		if(!Files.getFileStore(file.toPath()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+			// nothing to check without POSIX permissions
+			file.delete();
+			return;
+		}
+		Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+		new ZkSessionFile(file.getPath()).save(0x1234L, new byte[16]);
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		file.delete();
+	}
+
+	public void testConcurrentCallersShareOneConnectionAttempt() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		String unreachable = "127.0.0.1:" + socket.getLocalPort();
+		socket.close();
+		final AtomicInteger failures = new AtomicInteger();
+		final DefaultZkSessionManager down = new DefaultZkSessionManager(unreachable, 4000, Executors.newCachedThreadPool(), -1, 300);
+		down.setReconnectPolicy(new ReconnectPolicy() {
+			@Override
+			public long getDelayMillis(int failedAttempts, long previousDelayMillis) {
+				failures.incrementAndGet();
+				return 60000;
+			}
+		});
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			Future<?>[] results = new Future<?>[threads];
+			for(int i=0; i<threads; i++) {
+				results[i] = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						down.getZooKeeper();
+						return null;
+					}
+				});
+			}
+			start.countDown();
+			for(Future<?> result : results) {
+				try {
+					result.get(10, TimeUnit.SECONDS);
+					fail("expected the connection to fail");
+				}catch(ExecutionException expected) {
+					assertTrue(expected.getCause() instanceof RuntimeException);
+				}
+			}
+			assertEquals(1, failures.get());
+
+			// while the delay runs, callers wait at most the connection wait time, without attempting
+			long started = System.nanoTime();
+			try {
+				down.getZooKeeper();
+				fail("expected the connection to fail");
+			}catch(RuntimeException expected) {
+				// expected
+			}
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2000);
+			assertEquals(1, failures.get());
+		}finally {
+			pool.shutdownNow();
+			down.shutdown();
+		}
+	}
+
+	public void testBackoffDelaysStayWithinBounds() {
+		ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(100, 1000);
+		long delay = 0;
+		for(int attempt=1; attempt<50; attempt++) {
+			delay = policy.getDelayMillis(attempt, delay);
+			assertTrue(delay >= 100 && delay <= 1000);
+		}
+	}
+
+	public void testVirtualThreadListenerExecutor() throws Exception {
+		ExecutorService executor = DefaultZkSessionManager.newVirtualThreadListenerExecutor();
+		try {
+			final boolean[] virtual = new boolean[1];
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						virtual[0] = (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+					}catch(NoSuchMethodException e) {
+						virtual[0] = false;
+					}catch(Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}).get(5, TimeUnit.SECONDS);
+			// falls back to platform threads before Java 21
+			assertEquals(VirtualThreads.isSupported(), virtual[0]);
+		}finally {
+			executor.shutdown();
+		}
+	}
+
+	// replaces the session, which notifies the listeners of syncConnected again
+	private void reconnect() throws Exception {
+		manager.getZooKeeper().close();
+		manager.getZooKeeper();
+	}
+
+	private static final class CountingListener extends ConnectionListenerSkeleton {
+		private final AtomicInteger notifications = new AtomicInteger();
+
+		@Override
+		public void syncConnected() {
+			notifications.incrementAndGet();
+		}
+
+		private boolean awaitNotifications(int expected) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(notifications.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			return notifications.get() == expected;
+		}
+	}
+
+	// stops a client the way a killed process would: without closing its session
+	static void crash(ZooKeeper zk) throws Exception {
+		Field cnxn = ZooKeeper.class.getDeclaredField("cnxn");
+		cnxn.setAccessible(true);
+		Object connection = cnxn.get(zk);
+		connection.getClass().getMethod("disconnect").invoke(connection);
+	}
+}
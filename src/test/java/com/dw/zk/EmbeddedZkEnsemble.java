@@ -0,0 +1,160 @@
+package com.dw.zk;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.jmx.MBeanRegistry;
+import org.apache.zookeeper.jmx.ZKMBeanInfo;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+
+/**
+ * Description: 测试用的进程内zk集群，每个节点监听本地随机端口
+ * @author caohui
+ */
+public final class EmbeddedZkEnsemble {
+
+	private static final int TICK_TIME = 500;
+	private static final int INIT_LIMIT = 10;
+	private static final int SYNC_LIMIT = 5;
+	private static final int MAX_CONNECTIONS = 1000;
+	// fast leader election
+	private static final int ELECTION_ALGORITHM = 3;
+
+	private final File[] dataDirs;
+	private final int[] clientPorts;
+	private final QuorumPeer[] peers;
+	private MBeanRegistry jmxRegistry;
+
+	public EmbeddedZkEnsemble(int size) throws IOException {
+		this.dataDirs = new File[size];
+		this.clientPorts = new int[size];
+		this.peers = new QuorumPeer[size];
+		for(int i=0; i<size; i++) {
+			dataDirs[i] = File.createTempFile("zk-ensemble", "");
+			if(!dataDirs[i].delete() || !dataDirs[i].mkdirs()) {
+				throw new IOException("Unable to create data directory " + dataDirs[i]);
+			}
+		}
+	}
+
+	public EmbeddedZkEnsemble start() throws IOException, InterruptedException {
+		// the JMX beans of several servers in one JVM clash once one of them stops, which kills the others
+		jmxRegistry = MBeanRegistry.getInstance();
+		MBeanRegistry.setInstance(new MBeanRegistry() {
+			@Override
+			public void register(ZKMBeanInfo bean, ZKMBeanInfo parent) {
+				// not registered
+			}
+
+			@Override
+			public void unregister(ZKMBeanInfo bean) {
+				// not registered
+			}
+		});
+		Map<Long, QuorumPeer.QuorumServer> servers = new HashMap<Long, QuorumPeer.QuorumServer> ();
+		for(int i=0; i<peers.length; i++) {
+			clientPorts[i] = freePort();
+			servers.put((long) i, new QuorumPeer.QuorumServer(i, "127.0.0.1", freePort(), freePort(), QuorumPeer.LearnerType.PARTICIPANT));
+		}
+		for(int i=0; i<peers.length; i++) {
+			NIOServerCnxnFactory factory = new NIOServerCnxnFactory();
+			factory.configure(new InetSocketAddress("127.0.0.1", clientPorts[i]), MAX_CONNECTIONS);
+			peers[i] = new QuorumPeer(servers, dataDirs[i], dataDirs[i], ELECTION_ALGORITHM, i, TICK_TIME, INIT_LIMIT, SYNC_LIMIT, factory);
+			peers[i].start();
+		}
+		// wait for every server to serve requests, i.e. to have joined the leader
+		long deadline = System.currentTimeMillis() + 30000;
+		for(int i=0; i<peers.length; i++) {
+			while(!isServing(i)) {
+				if(System.currentTimeMillis() > deadline) {
+					throw new IOException("Server " + i + " of the ensemble did not start");
+				}
+				Thread.sleep(100);
+			}
+		}
+		return this;
+	}
+
+	private boolean isServing(int server) throws IOException, InterruptedException {
+		final CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zk = new ZooKeeper(getConnectString(server), 4 * TICK_TIME, new Watcher() {
+			@Override
+			public void process(WatchedEvent event) {
+				if(event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+					connected.countDown();
+				}
+			}
+		});
+		try {
+			if(!connected.await(2, TimeUnit.SECONDS)) {
+				return false;
+			}
+			zk.exists("/", false);
+			return true;
+		}catch(KeeperException e) {
+			return false;
+		}finally {
+			zk.close();
+		}
+	}
+
+	public int size() {
+		return peers.length;
+	}
+
+	public String getConnectString(int server) {
+		return "127.0.0.1:" + clientPorts[server];
+	}
+
+	public int getPort(int server) {
+		return clientPorts[server];
+	}
+
+	// stops one server, as if it crashed
+	public void stop(int server) {
+		if(peers[server] != null) {
+			peers[server].shutdown();
+			peers[server] = null;
+		}
+	}
+
+	public void stop() {
+		for(int i=0; i<peers.length; i++) {
+			stop(i);
+			deleteRecursively(dataDirs[i]);
+		}
+		if(jmxRegistry != null) {
+			MBeanRegistry.setInstance(jmxRegistry);
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		}finally {
+			socket.close();
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,72 @@
+package com.dw.zk;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * Description: 测试用的进程内单机zk服务，监听本地随机端口
+ * @author caohui
+ */
+public final class EmbeddedZkServer {
+
+	private static final int TICK_TIME = 2000;
+	private static final int MAX_CONNECTIONS = 1000;
+
+	private final File dataDir;
+	private ZooKeeperServer server;
+	private NIOServerCnxnFactory factory;
+	// the port to listen on, random until the first start
+	private int port;
+
+	public EmbeddedZkServer() throws IOException {
+		this.dataDir = File.createTempFile("zk-embedded", "");
+		if(!dataDir.delete() || !dataDir.mkdirs()) {
+			throw new IOException("Unable to create data directory " + dataDir);
+		}
+	}
+
+	public EmbeddedZkServer start() throws IOException, InterruptedException {
+		server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+		factory = new NIOServerCnxnFactory();
+		factory.configure(new InetSocketAddress("127.0.0.1", port), MAX_CONNECTIONS);
+		factory.startup(server);
+		port = factory.getLocalPort();
+		return this;
+	}
+
+	// stops serving for a while, then starts again on the same port with the same data, sessions included
+	public void bounce(long downMillis) throws IOException, InterruptedException {
+		factory.shutdown();
+		Thread.sleep(downMillis);
+		start();
+	}
+
+	public String getConnectString() {
+		return "127.0.0.1:" + factory.getLocalPort();
+	}
+
+	public int getPort() {
+		return factory.getLocalPort();
+	}
+
+	public void stop() {
+		if(factory != null) {
+			factory.shutdown();
+		}
+		deleteRecursively(dataDir);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,46 @@
+package com.dw.zk;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class LockQueueViewTest extends TestCase {
+
+	public void testLoadSortsBySequenceAndSkipsOtherPrefixes() {
+		LockQueueView queue = new LockQueueView('-', "lock");
+		assertFalse(queue.isLoadedFor(42));
+		queue.load(Arrays.asList("lock-0000000012", "probe-0000000011", "lock-0000000003", "lock-0000000100"), 42);
+		assertTrue(queue.isLoadedFor(42));
+		assertFalse(queue.isLoadedFor(43));
+		assertEquals(3, queue.size());
+		assertNull(queue.predecessor("lock-0000000003"));
+		assertEquals("lock-0000000003", queue.predecessor("lock-0000000012"));
+		assertEquals("lock-0000000012", queue.predecessor("lock-0000000100"));
+		assertFalse(queue.contains("probe-0000000011"));
+		assertFalse(queue.contains("lock-0000000011"));
+	}
+
+	public void testRemoveMovesToTheNextPredecessor() {
+		LockQueueView queue = new LockQueueView('-', "lock");
+		queue.load(Arrays.asList("lock-0000000004", "lock-0000000001", "lock-0000000002", "lock-0000000003"), 1);
+		queue.remove("lock-0000000003");
+		assertEquals("lock-0000000002", queue.predecessor("lock-0000000004"));
+		queue.remove("lock-0000000002");
+		queue.remove("lock-0000000002");
+		assertEquals("lock-0000000001", queue.predecessor("lock-0000000004"));
+		queue.remove("lock-0000000001");
+		assertNull(queue.predecessor("lock-0000000004"));
+		assertEquals(1, queue.size());
+	}
+
+	public void testPredecessorWithPrefix() {
+		LockQueueView queue = new LockQueueView('-', "read", "write");
+		queue.load(Arrays.asList("read-0000000005", "write-0000000002", "read-0000000001", "read-0000000003", "lock-0000000004"), 1);
+		assertEquals(4, queue.size());
+		assertEquals("read-0000000003", queue.predecessor("read-0000000005"));
+		assertEquals("write-0000000002", queue.predecessor("read-0000000005", "write"));
+		assertNull(queue.predecessor("write-0000000002", "write"));
+		queue.remove("write-0000000002");
+		assertNull(queue.predecessor("read-0000000005", "write"));
+	}
+}
@@ -0,0 +1,170 @@
+package com.dw.zk;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class MultiZkLockTest extends TestCase {
+
+	private static final String LOCK_PATH = "/test/multi";
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager first;
+	private DefaultZkSessionManager second;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		first = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		second = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.shutdown();
+		second.shutdown();
+		server.stop();
+	}
+
+	public void testKeysExcludeSingleKeyLocks() throws Exception {
+		MultiZkLock lock = new MultiZkLock(LOCK_PATH, first);
+		ReentrantZkLock single = new ReentrantZkLock(LOCK_PATH + "/b", second);
+		LockHandle handle = lock.lock("b", "a", "b");
+		try {
+			assertEquals(2, handle.getLockNodes().size());
+			assertTrue(handle.getLockNodes().get(0).startsWith(LOCK_PATH + "/a/"));
+			assertFalse(single.tryLock());
+			assertNull(new MultiZkLock(LOCK_PATH, second).tryLock("c", "a"));
+			// a failed attempt leaves no nodes behind
+			assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH + "/c", false).size());
+		}finally {
+			handle.release();
+		}
+		handle.release();
+		assertTrue(single.tryLock());
+		single.unlock();
+	}
+
+	public void testWaitsForEveryKey() throws Exception {
+		final MultiZkLock lock = new MultiZkLock(LOCK_PATH, first);
+		ReentrantZkLock a = new ReentrantZkLock(LOCK_PATH + "/a", second);
+		ReentrantZkLock b = new ReentrantZkLock(LOCK_PATH + "/b", second);
+		a.lock();
+		b.lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<LockHandle> result = pool.submit(new Callable<LockHandle>() {
+				@Override
+				public LockHandle call() throws Exception {
+					return lock.tryLock(10, TimeUnit.SECONDS, "a", "b");
+				}
+			});
+			while(first.getZooKeeper().getChildren(LOCK_PATH + "/b", false).size() < 2) {
+				Thread.sleep(10);
+			}
+			b.unlock();
+			Thread.sleep(200);
+			assertFalse(result.isDone());
+			a.unlock();
+			LockHandle handle = result.get(10, TimeUnit.SECONDS);
+			assertNotNull(handle);
+			handle.close();
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testAcquireAnyTakesTheFreeSlot() throws Exception {
+		MultiZkLock lock = new MultiZkLock(LOCK_PATH, first);
+		ReentrantZkLock slot1 = new ReentrantZkLock(LOCK_PATH + "/slot-1", second);
+		ReentrantZkLock slot3 = new ReentrantZkLock(LOCK_PATH + "/slot-3", second);
+		slot1.lock();
+		slot3.lock();
+		try {
+			LockHandle handle = lock.acquireAny(Arrays.asList("slot-1", "slot-2", "slot-3"), 0, TimeUnit.SECONDS);
+			assertNotNull(handle);
+			assertEquals(1, handle.getLockNodes().size());
+			assertTrue(handle.getLockNodes().get(0).startsWith(LOCK_PATH + "/slot-2/"));
+			// the other queue entries have been withdrawn
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH + "/slot-1", false).size());
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH + "/slot-3", false).size());
+			assertNull(lock.acquireAny(Arrays.asList("slot-1", "slot-2", "slot-3"), 100, TimeUnit.MILLISECONDS));
+			handle.release();
+		}finally {
+			slot1.unlock();
+			slot3.unlock();
+		}
+	}
+
+	public void testAcquireAnyWaitsForTheFirstRelease() throws Exception {
+		final MultiZkLock lock = new MultiZkLock(LOCK_PATH, first);
+		ReentrantZkLock slot1 = new ReentrantZkLock(LOCK_PATH + "/slot-1", second);
+		ReentrantZkLock slot2 = new ReentrantZkLock(LOCK_PATH + "/slot-2", second);
+		slot1.lock();
+		slot2.lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<LockHandle> result = pool.submit(new Callable<LockHandle>() {
+				@Override
+				public LockHandle call() throws Exception {
+					return lock.acquireAny(Arrays.asList("slot-1", "slot-2"), 10, TimeUnit.SECONDS);
+				}
+			});
+			while(first.getZooKeeper().getChildren(LOCK_PATH + "/slot-1", false).size() < 2
+					|| first.getZooKeeper().getChildren(LOCK_PATH + "/slot-2", false).size() < 2) {
+				Thread.sleep(10);
+			}
+			slot2.unlock();
+			LockHandle handle = result.get(10, TimeUnit.SECONDS);
+			assertTrue(handle.getLockNodes().get(0).startsWith(LOCK_PATH + "/slot-2/"));
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH + "/slot-1", false).size());
+			handle.close();
+		}finally {
+			pool.shutdownNow();
+			slot1.unlock();
+		}
+	}
+
+	public void testOpposingKeyOrdersDoNotDeadlock() throws Exception {
+		final MultiZkLock[] locks = { new MultiZkLock(LOCK_PATH, first), new MultiZkLock(LOCK_PATH, second) };
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] results = new Future<?>[4];
+			for(int i=0; i<results.length; i++) {
+				final MultiZkLock lock = locks[i % 2];
+				final String[] keys = i % 2 == 0 ? new String[]{"x", "y", "z"} : new String[]{"z", "y", "x"};
+				results[i] = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for(int j=0; j<10; j++) {
+							LockHandle handle = lock.lock(keys);
+							try {
+								if(holders.incrementAndGet() != 1) {
+									violations.incrementAndGet();
+								}
+								holders.decrementAndGet();
+							}finally {
+								handle.release();
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for(Future<?> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(0, violations.get());
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.dw.zk;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+public class NearestServersTest extends TestCase {
+
+	public void testUnreachableServersAreLeftOut() throws Exception {
+		ServerSocket open = new ServerSocket(0);
+		ServerSocket closed = new ServerSocket(0);
+		closed.close();
+		try {
+			String servers = "127.0.0.1:" + closed.getLocalPort() + ",127.0.0.1:" + open.getLocalPort() + "/app";
+			assertEquals("127.0.0.1:" + open.getLocalPort() + "/app", NearestServers.select(servers, new TcpConnectProbe(500)));
+		}finally {
+			open.close();
+		}
+	}
+
+	public void testAllServersKeptWhenNoneReachable() {
+		String servers = "127.0.0.1:1,127.0.0.1:2";
+		assertEquals(servers, NearestServers.select(servers, new FixedProbe(new HashMap<Integer, Long> ())));
+	}
+
+	public void testOnlyNearestTierKeptInOrder() {
+		Map<Integer, Long> roundTrips = new HashMap<Integer, Long> ();
+		roundTrips.put(1, ms(40));
+		roundTrips.put(2, ms(1));
+		roundTrips.put(3, ms(2));
+		assertEquals("h2:2,h3:3", NearestServers.select("h1:1,h2:2,h3:3", new FixedProbe(roundTrips)));
+	}
+
+	public void testTierIsPaddedToOutlastServerFailures() {
+		Map<Integer, Long> roundTrips = new HashMap<Integer, Long> ();
+		roundTrips.put(1, ms(1));
+		roundTrips.put(2, ms(20));
+		roundTrips.put(3, ms(10));
+		roundTrips.put(5, ms(30));
+		// a quorum of 5 outlasts 2 failures, so 3 servers are kept
+		assertEquals("h1:1,h3:3,h2:2", NearestServers.select("h1:1,h2:2,h3:3,h4:4,h5:5", new FixedProbe(roundTrips)));
+		// unreachable servers are the last resort
+		roundTrips.remove(2);
+		roundTrips.remove(3);
+		assertEquals("h1:1,h2:2", NearestServers.select("h1:1,h2:2,h3:3", new FixedProbe(roundTrips)));
+	}
+
+	public void testSessionIsEstablishedWithNearestServers() throws Exception {
+		EmbeddedZkServer[] servers = new EmbeddedZkServer[3];
+		StringBuilder connectString = new StringBuilder();
+		Map<Integer, Long> roundTrips = new HashMap<Integer, Long> ();
+		try {
+			for(int i=0; i<servers.length; i++) {
+				servers[i] = new EmbeddedZkServer().start();
+				if(i > 0) {
+					connectString.append(',');
+				}
+				connectString.append(servers[i].getConnectString());
+				// the second server is the nearest one, then the first one
+				roundTrips.put(servers[i].getPort(), i == 1 ? ms(1) : ms(50 * (i + 1)));
+			}
+			DefaultZkSessionManager manager = new DefaultZkSessionManager(connectString.toString(), 5000);
+			manager.setServerProbe(new FixedProbe(roundTrips));
+			try {
+				for(int attempt=0; attempt<5; attempt++) {
+					ZooKeeper zk = manager.getZooKeeper();
+					assertFalse(zk.toString(), zk.toString().contains(":" + servers[2].getPort() + " "));
+					zk.close();
+				}
+			}finally {
+				manager.shutdown();
+			}
+		}finally {
+			for(EmbeddedZkServer server : servers) {
+				if(server != null) {
+					server.stop();
+				}
+			}
+		}
+	}
+
+	public void testSessionSurvivesLossOfNearestServer() throws Exception {
+		EmbeddedZkEnsemble ensemble = new EmbeddedZkEnsemble(3).start();
+		try {
+			StringBuilder connectString = new StringBuilder();
+			Map<Integer, Long> roundTrips = new HashMap<Integer, Long> ();
+			for(int i=0; i<ensemble.size(); i++) {
+				if(i > 0) {
+					connectString.append(',');
+				}
+				connectString.append(ensemble.getConnectString(i));
+				roundTrips.put(ensemble.getPort(i), ms(i == 0 ? 1 : 50 * i));
+			}
+			DefaultZkSessionManager manager = new DefaultZkSessionManager(connectString.toString(), 6000);
+			manager.setServerProbe(new FixedProbe(roundTrips));
+			try {
+				// a session on the nearest server, the one about to fail
+				ZooKeeper zk = manager.getZooKeeper();
+				while(!zk.toString().contains(":" + ensemble.getPort(0) + " ")) {
+					zk.close();
+					zk = manager.getZooKeeper();
+				}
+				long sessionId = zk.getSessionId();
+				String node = zk.create("/owned", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+				ensemble.stop(0);
+				// the client moves to another server once the others have elected a new leader, if need be
+				Stat stat = null;
+				long deadline = System.currentTimeMillis() + 15000;
+				while(stat == null && System.currentTimeMillis() < deadline) {
+					try {
+						stat = zk.exists(node, false);
+					}catch(KeeperException.ConnectionLossException e) {
+						Thread.sleep(100);
+					}
+				}
+				assertNotNull(stat);
+				assertEquals(sessionId, stat.getEphemeralOwner());
+				assertEquals(sessionId, zk.getSessionId());
+				assertSame(zk, manager.getZooKeeper());
+			}finally {
+				manager.shutdown();
+			}
+		}finally {
+			ensemble.stop();
+		}
+	}
+
+	private static long ms(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	private static final class FixedProbe implements ServerProbe {
+		private final Map<Integer, Long> roundTrips;
+
+		FixedProbe(Map<Integer, Long> roundTrips) {
+			this.roundTrips = roundTrips;
+		}
+
+		@Override
+		public long probe(InetSocketAddress server) {
+			Long roundTrip = roundTrips.get(server.getPort());
+			return roundTrip == null ? -1 : roundTrip;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.dw.zk;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+public class PooledZkSessionManagerTest extends TestCase {
+
+	private static final String LOCK_PATH = "/test/pool/lock-";
+
+	private EmbeddedZkServer server;
+	private PooledZkSessionManager pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		pool = new PooledZkSessionManager(server.getConnectString(), 5000, 4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.shutdown();
+		server.stop();
+	}
+
+	public void testNodesAreSpreadOverEverySession() {
+		Set<ZkSessionManager> used = new HashSet<ZkSessionManager> ();
+		for(int i=0; i<100; i++) {
+			ZkSessionManager session = pool.getSessionManager(LOCK_PATH + i);
+			assertSame(session, pool.getSessionManager(LOCK_PATH + i));
+			assertTrue(session instanceof DefaultZkSessionManager);
+			used.add(session);
+		}
+		assertEquals(pool.getPoolSize(), used.size());
+	}
+
+	public void testPrimitivesOwnNodesOnTheSessionOfTheirBaseNode() throws Exception {
+		String first = LOCK_PATH + 0;
+		String second = null;
+		for(int i=1; second == null; i++) {
+			if(pool.getSessionManager(LOCK_PATH + i) != pool.getSessionManager(first)) {
+				second = LOCK_PATH + i;
+			}
+		}
+		ReentrantZkLock firstLock = new ReentrantZkLock(first, pool);
+		ReentrantZkLock secondLock = new ReentrantZkLock(second, pool);
+		assertSame(pool.getSessionManager(first), firstLock.zkSessionManager);
+		assertSame(pool.getSessionManager(second), secondLock.zkSessionManager);
+		firstLock.lock();
+		secondLock.lock();
+		try {
+			long firstOwner = ownerOf(first);
+			long secondOwner = ownerOf(second);
+			assertEquals(pool.getSessionManager(first).getZooKeeper().getSessionId(), firstOwner);
+			assertEquals(pool.getSessionManager(second).getZooKeeper().getSessionId(), secondOwner);
+			assertTrue(firstOwner != secondOwner);
+		}finally {
+			firstLock.unlock();
+			secondLock.unlock();
+		}
+	}
+
+	public void testShutdownClosesEverySession() {
+		Set<ZooKeeper> clients = new HashSet<ZooKeeper> ();
+		for(int i=0; clients.size() < pool.getPoolSize(); i++) {
+			clients.add(pool.getSessionManager(LOCK_PATH + i).getZooKeeper());
+		}
+		pool.shutdown();
+		for(ZooKeeper client : clients) {
+			assertFalse(client.getState().isAlive());
+		}
+		// shutting down twice is harmless
+		pool.shutdown();
+	}
+
+	// the session owning the only lock node under the given directory
+	private long ownerOf(String baseNode) throws Exception {
+		ZooKeeper zk = pool.getZooKeeper();
+		List<String> children = zk.getChildren(baseNode, false);
+		assertEquals(1, children.size());
+		Stat stat = zk.exists(baseNode + "/" + children.get(0), false);
+		return stat.getEphemeralOwner();
+	}
+}
@@ -0,0 +1,389 @@
+package com.dw.zk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+
+public class ReentrantZkLockTest extends TestCase {
+
+	private static final String LOCK_PATH = "/test/lock/job";
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager first;
+	private DefaultZkSessionManager second;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		first = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		second = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.shutdown();
+		second.shutdown();
+		server.stop();
+	}
+
+	public void testLockIsReentrantAndReleasedByLastUnlock() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		lock.lock();
+		lock.lock();
+		assertFalse(tryLockOnOtherThread(other));
+		lock.unlock();
+		assertFalse(tryLockOnOtherThread(other));
+		lock.unlock();
+		assertTrue(tryLockOnOtherThread(other));
+		// failed attempts leave no nodes behind
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	public void testTimedTryLockGivesUpAndDeletesItsNode() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			assertFalse(other.tryLock(200, TimeUnit.MILLISECONDS));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+		}finally {
+			lock.unlock();
+		}
+	}
+
+	public void testWaiterWakesWhenPredecessorIsDeleted() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		final ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		final AtomicLong acquiredAt = new AtomicLong();
+		final CountDownLatch waiting = new CountDownLatch(1);
+		lock.lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> result = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					waiting.countDown();
+					boolean acquired = other.tryLock(10, TimeUnit.SECONDS);
+					acquiredAt.set(System.nanoTime());
+					other.unlock();
+					return acquired;
+				}
+			});
+			waiting.await();
+			Thread.sleep(200);
+			long released = System.nanoTime();
+			lock.unlock();
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(acquiredAt.get() - released) < 1000);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testMutualExclusionAcrossSessions() throws Exception {
+		final ReentrantZkLock[] locks = { new ReentrantZkLock(LOCK_PATH, first), new ReentrantZkLock(LOCK_PATH, second) };
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] results = new Future<?>[8];
+			for(int i=0; i<results.length; i++) {
+				final ReentrantZkLock lock = locks[i % 2];
+				results[i] = pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for(int j=0; j<10; j++) {
+							lock.lock();
+							try {
+								if(holders.incrementAndGet() != 1) {
+									violations.incrementAndGet();
+								}
+								holders.decrementAndGet();
+							}finally {
+								lock.unlock();
+							}
+						}
+					}
+				});
+			}
+			for(Future<?> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(0, violations.get());
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testCoalescedThreadsShareOneNode() throws Exception {
+		final ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.setLocalCoalescing(true);
+		final ReentrantZkLock remote = new ReentrantZkLock(LOCK_PATH, second);
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		final int threads = 16;
+		final int rounds = 20;
+		ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+		try {
+			Future<?>[] results = new Future<?>[threads + 1];
+			for(int i=0; i<=threads; i++) {
+				final ReentrantZkLock target = i == threads ? remote : lock;
+				results[i] = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for(int j=0; j<rounds; j++) {
+							if(!target.tryLock(10, TimeUnit.SECONDS)) {
+								throw new AssertionError("timed out");
+							}
+							try {
+								if(holders.incrementAndGet() != 1) {
+									violations.incrementAndGet();
+								}
+								holders.decrementAndGet();
+							}finally {
+								target.unlock();
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for(Future<?> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+			assertEquals(0, violations.get());
+			assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+			// the sequence of a new node tells how many nodes have been queued so far
+			String probe = first.getZooKeeper().create(LOCK_PATH + "/probe-", new byte[0],
+					ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+			int queued = ZkInternalUtils.parseSequenceNumber(probe, '-');
+			assertTrue("queued " + queued + " nodes", queued < (threads + 1) * rounds / 2);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testGivingUpWaiterDoesNotStrandHandedOverNode() throws Exception {
+		final ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.setLocalCoalescing(true);
+		lock.lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			assertFalse(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return lock.tryLock(100, TimeUnit.MILLISECONDS);
+				}
+			}).get(10, TimeUnit.SECONDS));
+		}finally {
+			pool.shutdownNow();
+			lock.unlock();
+		}
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+		assertTrue(tryLockOnOtherThread(new ReentrantZkLock(LOCK_PATH, second)));
+	}
+
+	public void testStickyLeaseKeepsNodeWhileUncontended() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.setStickyLease(true);
+		lock.lock();
+		List<String> nodes = first.getZooKeeper().getChildren(LOCK_PATH, false);
+		lock.unlock();
+		assertEquals(nodes, first.getZooKeeper().getChildren(LOCK_PATH, false));
+		String node = LOCK_PATH + "/" + nodes.get(0);
+		assertTrue(awaitData(node, "released"));
+		for(int i=0; i<5; i++) {
+			lock.lock();
+			lock.unlock();
+		}
+		// taken back every time, never queued again
+		assertEquals(nodes, first.getZooKeeper().getChildren(LOCK_PATH, false));
+	}
+
+	public void testStickyLeaseIsGivenUpForRemoteWaiter() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.setStickyLease(true);
+		lock.lock();
+		lock.unlock();
+		ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		long start = System.nanoTime();
+		assertTrue(other.tryLock(10, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+		try {
+			assertFalse(lock.tryLock());
+		}finally {
+			other.unlock();
+		}
+		assertTrue(lock.tryLock(10, TimeUnit.SECONDS));
+		lock.unlock();
+	}
+
+	public void testStickyLeaseHeldIsReleasedOnUnlockWhenContended() throws Exception {
+		final ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.setStickyLease(true);
+		final ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		lock.lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> result = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					boolean acquired = other.tryLock(10, TimeUnit.SECONDS);
+					if(acquired) {
+						other.unlock();
+					}
+					return acquired;
+				}
+			});
+			while(first.getZooKeeper().getChildren(LOCK_PATH, false).size() < 2) {
+				Thread.sleep(10);
+			}
+			lock.unlock();
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}finally {
+			pool.shutdownNow();
+		}
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	public void testLockAsyncCompletesWhenPredecessorLeaves() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		ReentrantZkLock other = new ReentrantZkLock(LOCK_PATH, second);
+		lock.lock();
+		CompletableFuture<LockHandle> pending = other.lockAsync();
+		while(first.getZooKeeper().getChildren(LOCK_PATH, false).size() < 2) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertFalse(pending.isDone());
+		lock.unlock();
+		LockHandle handle = pending.get(10, TimeUnit.SECONDS);
+		assertFalse(lock.tryLock());
+		handle.release();
+		assertTrue(lock.tryLock(10, TimeUnit.SECONDS));
+		lock.unlock();
+	}
+
+	public void testManyPendingAsyncAcquisitionsNeedNoThreads() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		List<CompletableFuture<LockHandle>> pending = new ArrayList<CompletableFuture<LockHandle>> ();
+		for(int i=0; i<100; i++) {
+			pending.add(lock.lockAsync());
+		}
+		// each holder releases on the event thread as soon as it gets the lock: all of them get it in turn
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>> ();
+		for(CompletableFuture<LockHandle> future : pending) {
+			done.add(future.thenAccept(new Consumer<LockHandle>() {
+				@Override
+				public void accept(LockHandle handle) {
+					if(holders.incrementAndGet() != 1) {
+						violations.incrementAndGet();
+					}
+					holders.decrementAndGet();
+					handle.release();
+				}
+			}));
+		}
+		CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+		assertEquals(0, violations.get());
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	public void testLockAsyncTimesOutAndWithdraws() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		lock.lock();
+		try {
+			new ReentrantZkLock(LOCK_PATH, second).lockAsync(100, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+			fail("expected TimeoutException");
+		}catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}finally {
+			lock.unlock();
+		}
+		for(int i=0; i<100 && first.getZooKeeper().getChildren(LOCK_PATH, false).size() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	public void testWatchWakesOnlyItsWaiter() throws Exception {
+		ReentrantZkLock lock = new ReentrantZkLock(LOCK_PATH, first);
+		ZkPrimitive.Waiter watching = lock.newWaiter();
+		ZkPrimitive.Waiter other = lock.newWaiter();
+		try {
+			String node = first.getZooKeeper().create(LOCK_PATH + "/watched", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+			assertNotNull(first.getZooKeeper().exists(node, watching));
+			second.getZooKeeper().delete(node, -1);
+			for(int i=0; i<100 && watching.getSignals() == 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(1, watching.getSignals());
+			assertEquals(0, other.getSignals());
+			// connection events still wake everyone
+			lock.notifyParties();
+			assertEquals(2, watching.getSignals());
+			assertEquals(1, other.getSignals());
+		}finally {
+			lock.removeWaiter(watching);
+			lock.removeWaiter(other);
+		}
+	}
+
+	public void testUnlockWithoutLockFails() {
+		try {
+			new ReentrantZkLock(LOCK_PATH, first).unlock();
+			fail("expected IllegalMonitorStateException");
+		}catch(IllegalMonitorStateException expected) {
+			// expected
+		}
+	}
+
+	private boolean awaitData(String node, String expected) throws Exception {
+		for(int i=0; i<100; i++) {
+			if(expected.equals(new String(first.getZooKeeper().getData(node, false, null), "utf-8"))) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
+
+	private static boolean tryLockOnOtherThread(final ReentrantZkLock lock) throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			return pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean acquired = lock.tryLock();
+					if(acquired) {
+						lock.unlock();
+					}
+					return acquired;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.dw.zk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import junit.framework.TestCase;
+
+public class ReentrantZkReadWriteLockTest extends TestCase {
+
+	private static final String LOCK_PATH = "/test/rwlock/job";
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager first;
+	private DefaultZkSessionManager second;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		first = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		second = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.shutdown();
+		second.shutdown();
+		server.stop();
+	}
+
+	public void testReadersShareAndExcludeWriters() throws Exception {
+		ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock(LOCK_PATH, first);
+		ReentrantZkReadWriteLock other = new ReentrantZkReadWriteLock(LOCK_PATH, second);
+		lock.readLock().lock();
+		lock.readLock().lock();
+		try {
+			assertTrue(tryLockOnOtherThread(other.readLock()));
+			assertFalse(tryLockOnOtherThread(other.writeLock()));
+		}finally {
+			lock.readLock().unlock();
+			lock.readLock().unlock();
+		}
+		assertTrue(tryLockOnOtherThread(other.writeLock()));
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	public void testWriterExcludesReaders() throws Exception {
+		ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock(LOCK_PATH, first);
+		ReentrantZkReadWriteLock other = new ReentrantZkReadWriteLock(LOCK_PATH, second);
+		lock.writeLock().lock();
+		try {
+			assertFalse(tryLockOnOtherThread(other.readLock()));
+			assertFalse(tryLockOnOtherThread(other.writeLock()));
+		}finally {
+			lock.writeLock().unlock();
+		}
+		assertTrue(tryLockOnOtherThread(other.readLock()));
+	}
+
+	public void testReaderQueuedBehindWriterWakesOnRelease() throws Exception {
+		ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock(LOCK_PATH, first);
+		final ReentrantZkReadWriteLock other = new ReentrantZkReadWriteLock(LOCK_PATH, second);
+		lock.writeLock().lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> result = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					boolean acquired = other.readLock().tryLock(10, TimeUnit.SECONDS);
+					if(acquired) {
+						other.readLock().unlock();
+					}
+					return acquired;
+				}
+			});
+			awaitChildren(2);
+			lock.writeLock().unlock();
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testDowngradeAdmitsReadersButNotWriters() throws Exception {
+		ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock(LOCK_PATH, first);
+		final ReentrantZkReadWriteLock other = new ReentrantZkReadWriteLock(LOCK_PATH, second);
+		lock.writeLock().lock();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> reader = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					boolean acquired = other.readLock().tryLock(10, TimeUnit.SECONDS);
+					if(acquired) {
+						other.readLock().unlock();
+					}
+					return acquired;
+				}
+			});
+			awaitChildren(2);
+			lock.readLock().lock();
+			lock.writeLock().unlock();
+			// the write node now stands for a read lock only
+			assertTrue(reader.get(10, TimeUnit.SECONDS));
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+			assertFalse(tryLockOnOtherThread(other.writeLock()));
+			lock.readLock().unlock();
+		}finally {
+			pool.shutdownNow();
+		}
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+		assertTrue(tryLockOnOtherThread(other.writeLock()));
+	}
+
+	public void testReadInsideWriteIsReleasedWithTheWriteLock() throws Exception {
+		ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock(LOCK_PATH, first);
+		lock.writeLock().lock();
+		lock.readLock().lock();
+		lock.readLock().unlock();
+		assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+		lock.writeLock().unlock();
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH, false).size());
+	}
+
+	private void awaitChildren(int count) throws Exception {
+		while(first.getZooKeeper().getChildren(LOCK_PATH, false).size() < count) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean tryLockOnOtherThread(final Lock lock) throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			return pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean acquired = lock.tryLock();
+					if(acquired) {
+						lock.unlock();
+					}
+					return acquired;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+}
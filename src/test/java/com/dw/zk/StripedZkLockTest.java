@@ -0,0 +1,164 @@
+package com.dw.zk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import junit.framework.TestCase;
+
+public class StripedZkLockTest extends TestCase {
+
+	private static final String LOCK_PATH = "/test/striped/order";
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager first;
+	private DefaultZkSessionManager second;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		first = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		second = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.shutdown();
+		second.shutdown();
+		server.stop();
+	}
+
+	public void testKeysOfOneStripeShareItsNodeLocally() throws Exception {
+		StripedZkLock locks = new StripedZkLock(LOCK_PATH, first, 1);
+		StripedZkLock remote = new StripedZkLock(LOCK_PATH, second, 1);
+		Lock a = locks.getLock("order-1");
+		a.lock();
+		a.lock();
+		try {
+			// another key of the stripe joins the hold, the same key is excluded
+			assertTrue(tryLockOnOtherThread(locks.getLock("order-2")));
+			assertFalse(tryLockOnOtherThread(locks.getLock("order-1")));
+			assertFalse(tryLockOnOtherThread(remote.getLock("order-3")));
+			assertEquals(1, first.getZooKeeper().getChildren(LOCK_PATH + "/0", false).size());
+		}finally {
+			a.unlock();
+		}
+		assertFalse(tryLockOnOtherThread(remote.getLock("order-3")));
+		a.unlock();
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH + "/0", false).size());
+		assertTrue(tryLockOnOtherThread(remote.getLock("order-1")));
+	}
+
+	public void testKeysAreBoundToAFixedNumberOfStripes() throws Exception {
+		StripedZkLock locks = new StripedZkLock(LOCK_PATH, first, 4);
+		for(int i=0; i<100; i++) {
+			Lock lock = locks.getLock("order-" + i);
+			assertTrue(lock.tryLock());
+			lock.unlock();
+		}
+		assertTrue(first.getZooKeeper().getChildren(LOCK_PATH, false).size() <= 4);
+		assertEquals(locks.stripeOf("order-7"), new StripedZkLock(LOCK_PATH, second, 4).stripeOf("order-7"));
+	}
+
+	public void testJoinsAreBoundedSoOtherProcessesGetTheirTurn() throws Exception {
+		StripedZkLock locks = new StripedZkLock(LOCK_PATH, first, 1);
+		locks.setMaxLocalJoins(1);
+		StripedZkLock remote = new StripedZkLock(LOCK_PATH, second, 1);
+		Lock a = locks.getLock("order-1");
+		ExecutorService joiner = Executors.newSingleThreadExecutor();
+		ExecutorService remoteWaiter = Executors.newSingleThreadExecutor();
+		ExecutorService localWaiter = Executors.newSingleThreadExecutor();
+		try {
+			a.lock();
+			assertTrue(submitTryLock(joiner, locks.getLock("order-2"), 0).get(10, TimeUnit.SECONDS));
+			// the one join allowed has been used up
+			assertFalse(tryLockOnOtherThread(locks.getLock("order-3")));
+
+			Future<Boolean> remoteResult = submitTryLock(remoteWaiter, remote.getLock("order-4"), 10);
+			while(first.getZooKeeper().getChildren(LOCK_PATH + "/0", false).size() < 2) {
+				Thread.sleep(10);
+			}
+			Future<Boolean> localResult = submitTryLock(localWaiter, locks.getLock("order-5"), 10);
+			Thread.sleep(200);
+			assertFalse(localResult.isDone());
+
+			a.unlock();
+			submitUnlock(joiner, locks.getLock("order-2")).get(10, TimeUnit.SECONDS);
+			// the other process queued first, so it goes before the local waiter
+			assertTrue(remoteResult.get(10, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			assertFalse(localResult.isDone());
+			submitUnlock(remoteWaiter, remote.getLock("order-4")).get(10, TimeUnit.SECONDS);
+			assertTrue(localResult.get(10, TimeUnit.SECONDS));
+			submitUnlock(localWaiter, locks.getLock("order-5")).get(10, TimeUnit.SECONDS);
+		}finally {
+			joiner.shutdownNow();
+			remoteWaiter.shutdownNow();
+			localWaiter.shutdownNow();
+		}
+	}
+
+	public void testThreadHoldingTheStripeIsAlwaysLetIn() throws Exception {
+		StripedZkLock locks = new StripedZkLock(LOCK_PATH, first, 1);
+		locks.setMaxLocalJoins(0);
+		Lock a = locks.getLock("order-1");
+		Lock b = locks.getLock("order-2");
+		a.lock();
+		try {
+			assertFalse(tryLockOnOtherThread(locks.getLock("order-3")));
+			assertTrue(b.tryLock());
+			b.unlock();
+		}finally {
+			a.unlock();
+		}
+		assertEquals(0, first.getZooKeeper().getChildren(LOCK_PATH + "/0", false).size());
+	}
+
+	public void testUnlockWithoutLockFails() {
+		try {
+			new StripedZkLock(LOCK_PATH, first, 2).getLock("order-1").unlock();
+			fail("expected IllegalMonitorStateException");
+		}catch(IllegalMonitorStateException expected) {
+			// expected
+		}
+	}
+
+	private static Future<Boolean> submitTryLock(ExecutorService thread, final Lock lock, final long timeoutSeconds) {
+		return thread.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return lock.tryLock(timeoutSeconds, TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	private static Future<?> submitUnlock(ExecutorService thread, final Lock lock) {
+		return thread.submit(new Runnable() {
+			@Override
+			public void run() {
+				lock.unlock();
+			}
+		});
+	}
+
+	private static boolean tryLockOnOtherThread(final Lock lock) throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			return pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean acquired = lock.tryLock();
+					if(acquired) {
+						lock.unlock();
+					}
+					return acquired;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+}
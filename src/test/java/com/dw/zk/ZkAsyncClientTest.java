@@ -0,0 +1,77 @@
+package com.dw.zk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+public class ZkAsyncClientTest extends TestCase {
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager manager;
+	private ZkAsyncClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		manager = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		client = new ZkAsyncClient(manager);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		manager.shutdown();
+		server.stop();
+	}
+
+	public void testSafeCreateAndSafeDelete() throws Exception {
+		assertEquals("/node", get(client.safeCreate("/node", new byte[]{1}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)));
+		assertEquals("/node", get(client.safeCreate("/node", new byte[]{2}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)));
+		assertEquals(1, get(client.getData("/node", null))[0]);
+
+		assertEquals(Boolean.TRUE, get(client.safeDelete("/node", -1)));
+		assertEquals(Boolean.FALSE, get(client.safeDelete("/node", -1)));
+		assertNull(get(client.exists("/node", null)));
+		assertEquals(0, get(client.safeGetData("/node", null)).length);
+	}
+
+	public void testPlainOperationsReportKeeperExceptions() throws Exception {
+		get(client.create("/plain", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		try {
+			get(client.create("/plain", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+			fail("expected NodeExistsException");
+		}catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof KeeperException.NodeExistsException);
+		}
+		try {
+			get(client.getData("/missing", null));
+			fail("expected NoNodeException");
+		}catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+		}
+	}
+
+	public void testPipelinedRequests() throws Exception {
+		get(client.create("/parent", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+		List<CompletableFuture<String>> creates = new ArrayList<CompletableFuture<String>> ();
+		for(int i=0; i<200; i++) {
+			creates.add(client.create("/parent/child-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+		}
+		for(CompletableFuture<String> create : creates) {
+			get(create);
+		}
+		assertEquals(200, get(client.getChildren("/parent", null)).size());
+		assertEquals(1, get(client.setData("/parent", new byte[]{9}, -1)).getVersion());
+	}
+
+	private static <T> T get(CompletableFuture<T> future) throws Exception {
+		return future.get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,232 @@
+package com.dw.zk;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.ZooKeeper;
+
+public class ZkSemaphoreTest extends TestCase {
+
+	private static final String SEMAPHORE_PATH = "/test/semaphore/service";
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager first;
+	private DefaultZkSessionManager second;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		first = new DefaultZkSessionManager(server.getConnectString(), 5000);
+		second = new DefaultZkSessionManager(server.getConnectString(), 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.shutdown();
+		second.shutdown();
+		server.stop();
+	}
+
+	public void testBatchTakesOneNodeAndCapsPermits() throws Exception {
+		ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, first, 3);
+		ZkSemaphore other = new ZkSemaphore(SEMAPHORE_PATH, second, 3);
+		semaphore.acquire(2);
+		assertEquals(1, first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+		assertEquals(1, other.availablePermits());
+		assertFalse(other.tryAcquire(2));
+		assertTrue(other.tryAcquire());
+		assertFalse(other.tryAcquire(1, 100, TimeUnit.MILLISECONDS));
+		other.release();
+		semaphore.release(2);
+		assertEquals(0, first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+		assertTrue(other.tryAcquire(3));
+		other.release(3);
+	}
+
+	public void testWaiterAcquiresOnlyOnceEnoughPermitsAreFreed() throws Exception {
+		final ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, first, 2);
+		final ZkSemaphore other = new ZkSemaphore(SEMAPHORE_PATH, second, 2);
+		semaphore.acquire();
+		semaphore.acquire();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> waiter = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return other.tryAcquire(2, 10, TimeUnit.SECONDS);
+				}
+			});
+			while(first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size() < 3) {
+				Thread.sleep(10);
+			}
+			semaphore.release();
+			try {
+				waiter.get(300, TimeUnit.MILLISECONDS);
+				fail("acquired with one permit missing");
+			}catch(TimeoutException expected) {
+				// expected
+			}
+			semaphore.release();
+			assertTrue(waiter.get(10, TimeUnit.SECONDS));
+			other.release(2);
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testTinyTimeoutGivesUpPromptly() throws Exception {
+		ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, first, 1);
+		final ZkSemaphore other = new ZkSemaphore(SEMAPHORE_PATH, second, 1);
+		semaphore.acquire();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> result = pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return other.tryAcquire(1, 1, TimeUnit.NANOSECONDS);
+				}
+			});
+			assertFalse(result.get(5, TimeUnit.SECONDS));
+			// the node queued for the attempt has been withdrawn
+			assertEquals(1, first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+		}finally {
+			pool.shutdownNow();
+			semaphore.release();
+		}
+	}
+
+	public void testWaiterSurvivesServerBounce() throws Exception {
+		ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, first, 1);
+		final ZkSemaphore other = new ZkSemaphore(SEMAPHORE_PATH, second, 1);
+		semaphore.acquire();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> waiter = pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					other.acquire();
+					return null;
+				}
+			});
+			while(first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size() < 2) {
+				Thread.sleep(10);
+			}
+			server.bounce(500);
+			assertEquals(2, first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+			assertFalse(waiter.isDone());
+			semaphore.release();
+			waiter.get(10, TimeUnit.SECONDS);
+			other.release();
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testResumedSessionAdoptsItsPermitNode() throws Exception {
+		File file = File.createTempFile("zk-session", ".properties");
+		file.delete();
+		DefaultZkSessionManager crashed = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		crashed.setSessionFile(file.getPath());
+		ZooKeeper zk = crashed.getZooKeeper();
+		long sessionId = zk.getSessionId();
+		new ZkSemaphore(SEMAPHORE_PATH, crashed, 2).acquire(2);
+		List<String> before = zk.getChildren(SEMAPHORE_PATH, false);
+		assertEquals(1, before.size());
+		DefaultZkSessionManagerTest.crash(zk);
+
+		DefaultZkSessionManager restarted = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		restarted.setSessionFile(file.getPath());
+		try {
+			assertEquals(sessionId, restarted.getZooKeeper().getSessionId());
+			ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, restarted, 2);
+			// the node of the previous incarnation takes the permits, instead of waiting behind itself
+			assertTrue(semaphore.tryAcquire(2, 5, TimeUnit.SECONDS));
+			assertEquals(before, restarted.getZooKeeper().getChildren(SEMAPHORE_PATH, false));
+			semaphore.release(2);
+			assertEquals(0, restarted.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+		}finally {
+			restarted.shutdown();
+		}
+	}
+
+	public void testUnadoptedPermitNodeIsDeletedAfterResume() throws Exception {
+		File file = File.createTempFile("zk-session", ".properties");
+		file.delete();
+		DefaultZkSessionManager crashed = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		crashed.setSessionFile(file.getPath());
+		ZooKeeper zk = crashed.getZooKeeper();
+		new ZkSemaphore(SEMAPHORE_PATH, crashed, 1).acquire();
+		DefaultZkSessionManagerTest.crash(zk);
+
+		DefaultZkSessionManager restarted = new DefaultZkSessionManager(server.getConnectString(), 4000);
+		restarted.setSessionFile(file.getPath());
+		try {
+			assertEquals(zk.getSessionId(), restarted.getZooKeeper().getSessionId());
+			// nobody adopts the permit within one session timeout, so it is freed for the others
+			ZkSemaphore other = new ZkSemaphore(SEMAPHORE_PATH, second, 1);
+			assertTrue(other.tryAcquire(1, 10, TimeUnit.SECONDS));
+			other.release();
+		}finally {
+			restarted.shutdown();
+		}
+	}
+
+	public void testConcurrentHoldersNeverExceedPermits() throws Exception {
+		final ZkSemaphore[] semaphores = { new ZkSemaphore(SEMAPHORE_PATH, first, 3), new ZkSemaphore(SEMAPHORE_PATH, second, 3) };
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] results = new Future<?>[8];
+			for(int i=0; i<results.length; i++) {
+				final ZkSemaphore semaphore = semaphores[i % 2];
+				final int n = 1 + i % 2;
+				results[i] = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for(int j=0; j<10; j++) {
+							semaphore.acquire(n);
+							try {
+								if(holders.addAndGet(n) > 3) {
+									violations.incrementAndGet();
+								}
+								holders.addAndGet(-n);
+							}finally {
+								semaphore.release(n);
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for(Future<?> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(0, violations.get());
+			assertEquals(0, first.getZooKeeper().getChildren(SEMAPHORE_PATH, false).size());
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void testReleaseWithoutMatchingAcquisitionFails() throws Exception {
+		ZkSemaphore semaphore = new ZkSemaphore(SEMAPHORE_PATH, first, 3);
+		semaphore.acquire(2);
+		try {
+			semaphore.release(1);
+			fail("expected IllegalStateException");
+		}catch(IllegalStateException expected) {
+			// expected
+		}
+		semaphore.release(2);
+	}
+}
@@ -0,0 +1,104 @@
+package com.dw.zk;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Description: 对比 getZooKeeper() 无锁快速路径与原先类锁 + sync 实现在64线程下的吞吐量.
+ * classMonitor 单独测量原先的类锁，不含sync及其限流.
+ * 使用进程内zk服务，直接运行 main 方法即可.
+ * @author caohui
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class ZkSessionManagerBenchmark {
+
+	// 限制未完成的sync数量，避免压测时客户端发送队列无限增长
+	private static final int MAX_OUTSTANDING_SYNCS = 1024;
+
+	private final Semaphore outstandingSyncs = new Semaphore(MAX_OUTSTANDING_SYNCS);
+	private final AsyncCallback.VoidCallback syncCallback = new AsyncCallback.VoidCallback() {
+		@Override
+		public void processResult(int rc, String path, Object ctx) {
+			outstandingSyncs.release();
+		}
+	};
+
+	private EmbeddedZkServer server;
+	private DefaultZkSessionManager manager;
+	private ZooKeeper zk;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		manager = new DefaultZkSessionManager(server.getConnectString(), 30000);
+		zk = manager.getZooKeeper();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		manager.shutdown();
+		server.stop();
+	}
+
+	@Benchmark
+	public ZooKeeper fastPath() {
+		return manager.getZooKeeper();
+	}
+
+	// the previous implementation without its sync: the cost of the JVM wide class monitor alone, measured
+	// without any other synchronizer so that it compares directly with fastPath
+	@Benchmark
+	public ZooKeeper classMonitor() {
+		synchronized(DefaultZkSessionManager.class) {
+			return zk;
+		}
+	}
+
+	// the previous implementation: a JVM wide class monitor and a sync("/") on every call; the outstanding syncs
+	// are throttled, so this also measures the throttle (see classMonitor for the monitor alone)
+	@Benchmark
+	public ZooKeeper classMonitorWithSync() {
+		outstandingSyncs.acquireUninterruptibly();
+		synchronized(DefaultZkSessionManager.class) {
+			if(zk.getState() == ZooKeeper.States.CONNECTED) {
+				zk.sync("/", syncCallback, this);
+			}else {
+				outstandingSyncs.release();
+			}
+			return zk;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(ZkSessionManagerBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
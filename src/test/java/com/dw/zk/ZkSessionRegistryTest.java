@@ -0,0 +1,99 @@
+package com.dw.zk;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.ZooKeeper;
+
+public class ZkSessionRegistryTest extends TestCase {
+
+	private EmbeddedZkServer server;
+	private ZkSessionRegistry registry;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedZkServer().start();
+		registry = new ZkSessionRegistry(200, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	public void testKeyIgnoresServerOrder() {
+		assertEquals(ZkSessionRegistry.key("b:2181,a:2182/app", 5000), ZkSessionRegistry.key(" A:2182, b/app", 5000));
+		assertFalse(ZkSessionRegistry.key("a:2181", 5000).equals(ZkSessionRegistry.key("a:2181", 6000)));
+		assertFalse(ZkSessionRegistry.key("a:2181", 5000).equals(ZkSessionRegistry.key("a:2181/app", 5000)));
+	}
+
+	public void testLeasesShareOneSession() {
+		ZkSessionManager first = registry.acquire(server.getConnectString(), 5000);
+		ZkSessionManager second = registry.acquire(server.getConnectString(), 5000);
+		try {
+			assertSame(first.getZooKeeper(), second.getZooKeeper());
+			assertEquals(1, registry.size());
+		}finally {
+			first.shutdown();
+			second.shutdown();
+		}
+	}
+
+	public void testIdleSessionClosedAfterGracePeriod() throws Exception {
+		ZkSessionManager lease = registry.acquire(server.getConnectString(), 5000);
+		ZooKeeper zk = lease.getZooKeeper();
+		lease.shutdown();
+		lease.shutdown();
+		try {
+			lease.getZooKeeper();
+			fail("expected IllegalStateException");
+		}catch(IllegalStateException expected) {
+			// expected
+		}
+		assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while((registry.size() > 0 || zk.getState() != ZooKeeper.States.CLOSED) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, registry.size());
+		assertEquals(ZooKeeper.States.CLOSED, zk.getState());
+	}
+
+	public void testReacquireWithinGracePeriodKeepsSession() throws Exception {
+		ZkSessionManager lease = registry.acquire(server.getConnectString(), 5000);
+		ZooKeeper zk = lease.getZooKeeper();
+		lease.shutdown();
+		ZkSessionManager again = registry.acquire(server.getConnectString(), 5000);
+		try {
+			Thread.sleep(400);
+			assertSame(zk, again.getZooKeeper());
+			assertEquals(ZooKeeper.States.CONNECTED, zk.getState());
+		}finally {
+			again.shutdown();
+		}
+	}
+
+	public void testReleaseRemovesListenersOfLease() throws Exception {
+		ZkSessionManager keeper = registry.acquire(server.getConnectString(), 5000);
+		ZkSessionManager lease = registry.acquire(server.getConnectString(), 5000);
+		try {
+			DefaultZkSessionManager shared = (DefaultZkSessionManager) ZkSessionRegistry.unwrap(lease);
+			lease.addConnectionListener(new ConnectionListenerSkeleton() {});
+			assertEquals(1, listenerCount(shared));
+			lease.shutdown();
+			assertEquals(0, listenerCount(shared));
+		}finally {
+			keeper.shutdown();
+		}
+	}
+
+	private static int listenerCount(DefaultZkSessionManager manager) throws Exception {
+		Field listeners = DefaultZkSessionManager.class.getDeclaredField("listeners");
+		listeners.setAccessible(true);
+		return ((Map<?, ?>) listeners.get(manager)).size();
+	}
+}